@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+
+/**
+ * Checks the bytes allocated per call of the hot operations against a budget, so the
+ * allocation regressions are caught. The allocation is measured with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} on the calling thread
+ * after a warmup, the budgets are read from allocation-budgets.properties (operation=bytes per
+ * call) next to this class or from the file given as budgets=file.
+ *
+ * The exit code is 1 if any of the operations is over its budget. With calibrate=true the
+ * measured values (plus 25% headroom) are printed in the budget file format instead.
+ *
+ * <pre>java -cp target/benchmarks.jar org.liveSense.service.securityManager.AllocationBudget [iterations=2000] [budgets=file] [calibrate=true]</pre>
+ */
+public class AllocationBudget {
+
+	interface Operation {
+		void run() throws Exception;
+	}
+
+	static final double CALIBRATION_HEADROOM = 1.25;
+
+	private final com.sun.management.ThreadMXBean threads;
+	private int iterations = 2000;
+
+	public AllocationBudget() {
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			throw new IllegalStateException("Thread allocated memory measurement is not supported by this JVM");
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Returns the bytes allocated by one call of the operation
+	 */
+	long measure(Operation operation) throws Exception {
+		for (int i = 0; i < iterations; i++) {
+			operation.run();
+		}
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < iterations; i++) {
+			operation.run();
+		}
+		return (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+	}
+
+	private static Map<String, Operation> operations(final SecurityManagerService service, final DatasetGenerator dataset,
+			final Session adminSession, final Session userSession) throws Exception {
+		Map<String, Operation> ret = new LinkedHashMap<String, Operation>();
+		final String user = dataset.getUserName(0);
+		final String group = dataset.getGroupName(0);
+		final String path = dataset.getContentPath(1, 0);
+
+		final AccessRights rights = new AccessRightsImpl();
+		AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(adminSession);
+		rights.getGranted().add(SerializablePrivilege.fromPrivilege(accessControlManager.privilegeFromName(Privilege.JCR_READ)));
+		rights.getGranted().add(SerializablePrivilege.fromPrivilege(accessControlManager.privilegeFromName(Privilege.JCR_WRITE)));
+		rights.getGranted().add(SerializablePrivilege.fromPrivilege(accessControlManager.privilegeFromName(Privilege.JCR_READ_ACCESS_CONTROL)));
+		final Privilege all = new PrivilegeFromSerializable(SerializablePrivilege.fromPrivilege(accessControlManager.privilegeFromName(Privilege.JCR_ALL)));
+
+		ret.put("AccessRightsImpl.getGrantedAsString", new Operation() {
+			@Override
+			public void run() {
+				rights.getGrantedAsString();
+			}
+		});
+		ret.put("PrivilegeFromSerializable.getAggregatePrivileges", new Operation() {
+			@Override
+			public void run() {
+				all.getAggregatePrivileges();
+			}
+		});
+		ret.put("getDeclaredAccessRights", new Operation() {
+			@Override
+			public void run() throws Exception {
+				service.getDeclaredAccessRights(adminSession, path);
+			}
+		});
+		ret.put("getEffectiveAccessRights", new Operation() {
+			@Override
+			public void run() throws Exception {
+				service.getEffectiveAccessRights(adminSession, path);
+			}
+		});
+		ret.put("getAclByName", new Operation() {
+			@Override
+			public void run() throws Exception {
+				service.getAclByName(adminSession, group, path);
+			}
+		});
+		ret.put("getUserByName", new Operation() {
+			@Override
+			public void run() throws Exception {
+				service.getUserByName(adminSession, user);
+			}
+		});
+		ret.put("getEffectiveMemberOfByName", new Operation() {
+			@Override
+			public void run() throws Exception {
+				service.getEffectiveMemberOfByName(adminSession, user);
+			}
+		});
+		ret.put("canAddChildren", new Operation() {
+			@Override
+			public void run() {
+				service.canAddChildren(userSession, path);
+			}
+		});
+		return ret;
+	}
+
+	private static Properties loadBudgets(File file) throws IOException {
+		Properties budgets = new Properties();
+		InputStream in = file != null ? new FileInputStream(file) : AllocationBudget.class.getResourceAsStream("allocation-budgets.properties");
+		if (in != null) {
+			try {
+				budgets.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return budgets;
+	}
+
+	public static void main(String[] args) throws Exception {
+		AllocationBudget budget = new AllocationBudget();
+		File budgetsFile = null;
+		boolean calibrate = false;
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			String name = arg.substring(0, idx);
+			String value = arg.substring(idx + 1);
+			if ("iterations".equals(name)) {
+				budget.iterations = Integer.parseInt(value);
+			} else if ("budgets".equals(name)) {
+				budgetsFile = new File(value);
+			} else if ("calibrate".equals(name)) {
+				calibrate = Boolean.parseBoolean(value);
+			} else {
+				throw new IllegalArgumentException("Unknown parameter: " + name);
+			}
+		}
+		Properties budgets = loadBudgets(budgetsFile);
+
+		DatasetGenerator dataset = new DatasetGenerator().setPrefix("alloc-").setContentRoot("/alloc")
+				.setUsers(100).setGroups(10).setContentDepth(2).setContentFanout(3);
+		EmbeddedRepository repository = new EmbeddedRepository();
+		repository.start();
+		int breaches = 0;
+		try {
+			SecurityManagerFixture fixture = new SecurityManagerFixture(repository, new HashMap<String, Object>());
+			Session adminSession = repository.loginAdministrative();
+			try {
+				dataset.generate(fixture.getService(), adminSession);
+				Session userSession = repository.login(dataset.getUserName(0));
+				try {
+					for (Map.Entry<String, Operation> entry : operations(fixture.getService(), dataset, adminSession, userSession).entrySet()) {
+						String name = entry.getKey();
+						long bytes = budget.measure(entry.getValue());
+						if (calibrate) {
+							System.out.println(name + "=" + (long) (bytes * CALIBRATION_HEADROOM));
+							continue;
+						}
+						String limit = budgets.getProperty(name);
+						if (limit == null) {
+							System.out.println(String.format("%-50s %10d B/call   (no budget)", name, bytes));
+						} else if (bytes > Long.parseLong(limit.trim())) {
+							breaches++;
+							System.out.println(String.format("%-50s %10d B/call > %d FAIL", name, bytes, Long.parseLong(limit.trim())));
+						} else {
+							System.out.println(String.format("%-50s %10d B/call <= %d", name, bytes, Long.parseLong(limit.trim())));
+						}
+					}
+				} finally {
+					userSession.logout();
+				}
+			} finally {
+				adminSession.logout();
+				fixture.deactivate();
+			}
+		} finally {
+			repository.shutdown();
+		}
+		if (breaches > 0) {
+			System.out.println(breaches + " operation(s) over the allocation budget");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.EventAdmin;
+
+/**
+ * Creates and activates a {@link UserResourceChangeListener} outside of the OSGi container,
+ * with the given {@link SecurityChangeListener}s bound. The job events are counted and
+ * discarded.
+ */
+public final class ChangeListenerFixture {
+
+	private final UserResourceChangeListener listener;
+	private final ComponentContext componentContext;
+	private final AtomicLong jobEvents = new AtomicLong();
+
+	public ChangeListenerFixture(EmbeddedRepository repository, SecurityChangeListener... listeners) throws Exception {
+		listener = new UserResourceChangeListener();
+		SecurityManagerFixture.inject(listener, "repository", repository.getSlingRepository());
+		SecurityManagerFixture.inject(listener, "eventAdmin", SecurityManagerFixture.stub(EventAdmin.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("sendEvent".equals(method.getName()) || "postEvent".equals(method.getName())) {
+					jobEvents.incrementAndGet();
+					return null;
+				}
+				return SecurityManagerFixture.defaultValue(proxy, method, args);
+			}
+		}));
+		for (SecurityChangeListener act : listeners) {
+			listener.bindSecurityChangeListener(act);
+		}
+		componentContext = SecurityManagerFixture.createComponentContext(Collections.<String, Object>emptyMap());
+		listener.activate(componentContext);
+	}
+
+	public UserResourceChangeListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Number of the job events sent (the changes made on this repository)
+	 */
+	public long getJobEventCount() {
+		return jobEvents.get();
+	}
+
+	public void deactivate() throws Exception {
+		listener.deactivate(componentContext);
+	}
+}
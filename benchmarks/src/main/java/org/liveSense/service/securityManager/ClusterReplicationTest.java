@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Two node Jackrabbit cluster test of the security change dispatching.
+ *
+ * The cluster nodes run in this JVM (see cluster-repository.xml), both with a
+ * {@link UserResourceChangeListener}. Users, groups and memberships are created through the
+ * service on the first node, then the test waits until the second node dispatched all of them
+ * as external changes and checks that:
+ * <ul>
+ * <li>every change reached the {@link SecurityChangeListener}s of both nodes</li>
+ * <li>the second node reports them as external changes with their replication lag, the first
+ * node has no external changes</li>
+ * <li>the job events are sent only by the first node</li>
+ * <li>no change was dropped</li>
+ * <li>both nodes registered their own metrics MBean, with their own counters</li>
+ * </ul>
+ * The nodes share the clock, so the measured lag is the journal synchronization delay (at most
+ * syncDelay plus the dispatching), without clock offset.
+ *
+ * Exits with 1 when a check fails. Run by mvn verify of the benchmarks module, or with
+ * name=value arguments, e.g.:
+ * <pre>java -cp target/benchmarks.jar org.liveSense.service.securityManager.ClusterReplicationTest changes=200 syncDelay=100</pre>
+ */
+public class ClusterReplicationTest {
+
+	static final String PREFIX = "cluster-";
+
+	private int changes = 100;
+	private int syncDelay = 100;
+	private int timeoutSeconds = 60;
+
+	/**
+	 * Records the dispatched changes
+	 */
+	static final class RecordingListener implements SecurityChangeListener {
+		final Set<String> users = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> groups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> memberships = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicLong dropped = new AtomicLong();
+
+		@Override
+		public void userAdded(String userId) {
+			users.add(userId);
+		}
+
+		@Override
+		public void userRemoved(String userId) {
+		}
+
+		@Override
+		public void groupAdded(String groupId) {
+			groups.add(groupId);
+		}
+
+		@Override
+		public void groupRemoved(String groupId) {
+		}
+
+		@Override
+		public void membershipChanged(String groupId) {
+			memberships.add(groupId);
+		}
+
+		@Override
+		public void aclChanged(String path) {
+		}
+
+		@Override
+		public void changesDropped() {
+			dropped.incrementAndGet();
+		}
+
+		boolean isComplete(int changes) {
+			return users.size() >= changes && groups.size() >= changes && memberships.size() >= changes;
+		}
+	}
+
+	/**
+	 * Sets a parameter by name: changes (number of users, groups and memberships),
+	 * syncDelay (journal synchronization delay in milliseconds), timeout (seconds)
+	 */
+	public ClusterReplicationTest set(String name, String value) {
+		if ("changes".equals(name)) {
+			changes = Integer.parseInt(value);
+		} else if ("syncDelay".equals(name)) {
+			syncDelay = Integer.parseInt(value);
+		} else if ("timeout".equals(name)) {
+			timeoutSeconds = Integer.parseInt(value);
+		} else {
+			throw new IllegalArgumentException("Unknown parameter: " + name);
+		}
+		return this;
+	}
+
+	/**
+	 * Runs the test
+	 *
+	 * @param The failed checks are added to this list
+	 * @return The results as sorted name - value pairs
+	 */
+	public Map<String, Object> run(List<String> failures) throws Exception {
+		Map<String, Object> results = new TreeMap<String, Object>();
+		File shared = File.createTempFile("liveSense-securityManager-", "-cluster");
+		if (!shared.delete() || !shared.mkdirs()) {
+			throw new IOException("Could not create cluster directory: " + shared);
+		}
+		EmbeddedRepository first = node(shared, "node1");
+		EmbeddedRepository second = node(shared, "node2");
+		RecordingListener firstRecorder = new RecordingListener();
+		RecordingListener secondRecorder = new RecordingListener();
+		try {
+			first.start();
+			second.start();
+			ChangeListenerFixture firstListener = new ChangeListenerFixture(first, firstRecorder);
+			ChangeListenerFixture secondListener = new ChangeListenerFixture(second, secondRecorder);
+			SecurityManagerFixture fixture = new SecurityManagerFixture(first, new HashMap<String, Object>());
+			try {
+				long start = System.nanoTime();
+				makeChanges(first, fixture.getService());
+				long deadline = System.nanoTime() + timeoutSeconds * 1000000000L;
+				while (!(firstRecorder.isComplete(changes) && secondRecorder.isComplete(changes)) && System.nanoTime() < deadline) {
+					Thread.sleep(10);
+				}
+				results.put("changes", changes);
+				results.put("syncDelay", syncDelay);
+				results.put("elapsedMillis", (System.nanoTime() - start) / 1000000L);
+				report(results, "node1", firstListener, firstRecorder);
+				report(results, "node2", secondListener, secondRecorder);
+
+				check(failures, firstRecorder.isComplete(changes), "node1 did not dispatch every local change");
+				check(failures, secondRecorder.isComplete(changes), "node2 did not dispatch every external change within " + timeoutSeconds + "s");
+				check(failures, firstListener.getListener().getExternalChangeCount() == 0, "node1 reported external changes");
+				check(failures, secondListener.getListener().getExternalChangeCount() >= 3L * changes, "node2 reported fewer external changes than were made");
+				check(failures, firstListener.getJobEventCount() >= 3L * changes, "node1 did not send the job events");
+				check(failures, secondListener.getJobEventCount() == 0, "node2 sent job events of external changes");
+				check(failures, firstRecorder.dropped.get() == 0 && secondRecorder.dropped.get() == 0, "changes were dropped");
+				checkMBeans(failures);
+			} finally {
+				fixture.deactivate();
+				secondListener.deactivate();
+				firstListener.deactivate();
+			}
+		} finally {
+			second.shutdown();
+			first.shutdown();
+			shutdownDatabase(shared);
+			delete(shared);
+		}
+		return results;
+	}
+
+	private EmbeddedRepository node(File shared, String id) {
+		Map<String, String> replacements = new HashMap<String, String>();
+		replacements.put("SHARED", shared.getAbsolutePath().replace('\\', '/'));
+		replacements.put("NODE_ID", id);
+		replacements.put("SYNC_DELAY", Integer.toString(syncDelay));
+		return new EmbeddedRepository("cluster-repository.xml", replacements);
+	}
+
+	private void makeChanges(EmbeddedRepository repository, SecurityManagerService service) throws Exception {
+		Map<String, Object> noProperties = Collections.emptyMap();
+		Session session = repository.loginAdministrative();
+		try {
+			for (int i = 0; i < changes; i++) {
+				service.addUser(session, PREFIX + "user-" + i, "password", noProperties);
+				service.addGroup(session, PREFIX + "group-" + i, noProperties);
+				session.save();
+				service.addPrincipalToGroup(session, PREFIX + "user-" + i, PREFIX + "group-" + i);
+				session.save();
+			}
+		} finally {
+			session.logout();
+		}
+	}
+
+	private static void report(Map<String, Object> results, String node, ChangeListenerFixture fixture, RecordingListener recorder) {
+		UserResourceChangeListener listener = fixture.getListener();
+		results.put(node + ".users", recorder.users.size());
+		results.put(node + ".groups", recorder.groups.size());
+		results.put(node + ".memberships", recorder.memberships.size());
+		results.put(node + ".dispatched", listener.getDispatchedCount());
+		results.put(node + ".dropped", listener.getDroppedCount());
+		results.put(node + ".jobEvents", fixture.getJobEventCount());
+		results.put(node + ".externalChanges", listener.getExternalChangeCount());
+		results.put(node + ".replicationLag.min", listener.getMinReplicationLag());
+		results.put(node + ".replicationLag.avg", listener.getAverageReplicationLag());
+		results.put(node + ".replicationLag.max", listener.getMaxReplicationLag());
+	}
+
+	/**
+	 * The two listeners in this JVM have to register two MBeans: one of the first node without
+	 * external changes, one of the second node with them
+	 */
+	private void checkMBeans(List<String> failures) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		boolean local = false;
+		boolean external = false;
+		for (ObjectName name : server.queryNames(new ObjectName(UserResourceChangeListener.METRICS_MBEAN_NAME + ",*"), null)) {
+			long count = (Long) server.getAttribute(name, "ExternalChangeCount");
+			local |= count == 0;
+			external |= count >= 3L * changes;
+		}
+		check(failures, local && external, "the metrics MBeans of the two nodes are not registered separately");
+	}
+
+	private static void check(List<String> failures, boolean condition, String message) {
+		if (!condition) {
+			failures.add(message);
+		}
+	}
+
+	private static void shutdownDatabase(File shared) {
+		try {
+			DriverManager.getConnection("jdbc:derby:" + new File(shared, "db").getAbsolutePath() + ";shutdown=true");
+		} catch (SQLException ex) {
+			// Derby reports the successful shutdown with an exception
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		ClusterReplicationTest test = new ClusterReplicationTest();
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			if (idx <= 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			test.set(arg.substring(0, idx), arg.substring(idx + 1));
+		}
+		List<String> failures = new ArrayList<String>();
+		for (Map.Entry<String, Object> entry : test.run(failures).entrySet()) {
+			System.out.println(entry.getKey() + " = " + entry.getValue());
+		}
+		for (String failure : failures) {
+			System.out.println("FAILED: " + failure);
+		}
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+}
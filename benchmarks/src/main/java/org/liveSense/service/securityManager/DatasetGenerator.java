@@ -0,0 +1,342 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.Privilege;
+
+/**
+ * Reproducible synthetic security dataset built through the {@link SecurityManagerService}.
+ *
+ * The shape:
+ * <ul>
+ * <li>groups form a tree, group i is a member of group (i - 1) / groupFanout, so the
+ * fanout sets how deep and wide the hierarchy is</li>
+ * <li>every user is a member of membershipsPerUser distinct random groups</li>
+ * <li>the content tree under contentRoot has contentDepth levels of contentFanout children,
+ * the nodes of every aceInterval-th level get an ACE allowing a random group jcr:read and
+ * jcr:addChildNodes, and with denyRatio probability an ACE denying another random group
+ * jcr:removeNode</li>
+ * </ul>
+ * The names are derived from the indexes ({@link #getUserName(int)}, {@link #getGroupName(int)},
+ * {@link #getContentPath(int, long)}), every random choice comes from the seed, so the same
+ * parameters always produce the same dataset. Nothing is kept in memory, the creation is
+ * streamed and the session is saved every batchSize operations.
+ *
+ * Run standalone (in memory repository) with:
+ * <pre>java -cp target/benchmarks.jar org.liveSense.service.securityManager.DatasetGenerator users=100000 groups=1000 manifest=dataset.properties</pre>
+ */
+public class DatasetGenerator {
+
+	private long seed = 1;
+	private String prefix = "ds-";
+	private int users = 1000;
+	private int groups = 100;
+	private int groupFanout = 4;
+	private int membershipsPerUser = 2;
+	private String contentRoot = "/dataset";
+	private int contentDepth = 3;
+	private int contentFanout = 5;
+	private int aceInterval = 1;
+	private double denyRatio = 0.1;
+	private int batchSize = 500;
+
+	private Session session;
+	private int pending;
+	private long saves;
+
+	public DatasetGenerator setSeed(long seed) { this.seed = seed; return this; }
+	public DatasetGenerator setPrefix(String prefix) { this.prefix = prefix; return this; }
+	public DatasetGenerator setUsers(int users) { this.users = users; return this; }
+	public DatasetGenerator setGroups(int groups) { this.groups = Math.max(1, groups); return this; }
+	public DatasetGenerator setGroupFanout(int groupFanout) { this.groupFanout = Math.max(1, groupFanout); return this; }
+	public DatasetGenerator setMembershipsPerUser(int membershipsPerUser) { this.membershipsPerUser = membershipsPerUser; return this; }
+	public DatasetGenerator setContentRoot(String contentRoot) { this.contentRoot = contentRoot; return this; }
+	public DatasetGenerator setContentDepth(int contentDepth) { this.contentDepth = contentDepth; return this; }
+	public DatasetGenerator setContentFanout(int contentFanout) { this.contentFanout = Math.max(1, contentFanout); return this; }
+	public DatasetGenerator setAceInterval(int aceInterval) { this.aceInterval = Math.max(1, aceInterval); return this; }
+	public DatasetGenerator setDenyRatio(double denyRatio) { this.denyRatio = denyRatio; return this; }
+	public DatasetGenerator setBatchSize(int batchSize) { this.batchSize = Math.max(1, batchSize); return this; }
+
+	public int getUsers() { return users; }
+	public int getGroups() { return groups; }
+	public int getContentDepth() { return contentDepth; }
+
+	public String getUserName(int i) {
+		return prefix + "user-" + i;
+	}
+
+	public String getGroupName(int i) {
+		return prefix + "group-" + i;
+	}
+
+	/**
+	 * Index of the parent group of the given group, -1 for the root group
+	 */
+	public int getParentGroup(int i) {
+		return i == 0 ? -1 : (i - 1) / groupFanout;
+	}
+
+	/**
+	 * Number of the content nodes on the given level (1 based)
+	 */
+	public long getContentNodeCount(int level) {
+		long ret = 1;
+		for (int i = 0; i < level; i++) {
+			ret *= contentFanout;
+		}
+		return ret;
+	}
+
+	/**
+	 * Path of the index-th content node of the given level (1 based)
+	 */
+	public String getContentPath(int level, long index) {
+		StringBuilder path = new StringBuilder(contentRoot);
+		long divisor = getContentNodeCount(level - 1);
+		for (int l = 0; l < level; l++) {
+			path.append("/c").append((index / divisor) % contentFanout);
+			divisor /= contentFanout;
+		}
+		return path.toString();
+	}
+
+	/**
+	 * True if the nodes of the level get ACEs
+	 */
+	public boolean hasAces(int level) {
+		return level % aceInterval == 0;
+	}
+
+	/**
+	 * Generates the dataset
+	 *
+	 * @param The service
+	 * @param An administrative session
+	 * @return The manifest of the dataset
+	 */
+	public DatasetManifest generate(SecurityManagerService service, Session session) throws Exception {
+		this.session = session;
+		pending = 0;
+		saves = 0;
+		DatasetManifest manifest = new DatasetManifest();
+		manifest.put("seed", seed);
+		manifest.put("prefix", prefix);
+		manifest.put("users", users);
+		manifest.put("groups", groups);
+		manifest.put("groupFanout", groupFanout);
+		manifest.put("membershipsPerUser", membershipsPerUser);
+		manifest.put("contentRoot", contentRoot);
+		manifest.put("contentDepth", contentDepth);
+		manifest.put("contentFanout", contentFanout);
+		manifest.put("aceInterval", aceInterval);
+		manifest.put("denyRatio", denyRatio);
+		manifest.put("batchSize", batchSize);
+		long start = System.currentTimeMillis();
+
+		Map<String, Object> noProperties = Collections.emptyMap();
+
+		// Groups, the parents are created first
+		long phase = System.currentTimeMillis();
+		int groupDepth = 0;
+		for (int i = 0; i < groups; i++) {
+			service.addGroup(session, getGroupName(i), noProperties);
+			int parent = getParentGroup(i);
+			if (parent >= 0) {
+				service.addPrincipalToGroup(session, getGroupName(i), getGroupName(parent));
+			}
+			int depth = 0;
+			for (int p = parent; p >= 0; p = getParentGroup(p)) {
+				depth++;
+			}
+			groupDepth = Math.max(groupDepth, depth + 1);
+			operation(2);
+		}
+		save();
+		manifest.put("groupDepth", groupDepth);
+		manifest.put("groupsMillis", System.currentTimeMillis() - phase);
+
+		// Users and memberships
+		phase = System.currentTimeMillis();
+		Random random = new Random(seed);
+		int memberships = Math.min(membershipsPerUser, groups);
+		int[] chosen = new int[memberships];
+		long membershipCount = 0;
+		for (int i = 0; i < users; i++) {
+			String userName = getUserName(i);
+			service.addUser(session, userName, userName, noProperties);
+			for (int m = 0; m < memberships; m++) {
+				int group;
+				do {
+					group = random.nextInt(groups);
+				} while (contains(chosen, m, group));
+				chosen[m] = group;
+				service.addPrincipalToGroup(session, userName, getGroupName(group));
+				membershipCount++;
+			}
+			operation(1 + memberships);
+		}
+		save();
+		manifest.put("memberships", membershipCount);
+		manifest.put("usersMillis", System.currentTimeMillis() - phase);
+
+		// Content tree, breadth first so the parents exist
+		phase = System.currentTimeMillis();
+		Node root = getOrCreate(session.getRootNode(), contentRoot.substring(1));
+		long contentNodes = 0;
+		for (int level = 1; level <= contentDepth; level++) {
+			long count = getContentNodeCount(level);
+			for (long index = 0; index < count; index++) {
+				String path = getContentPath(level, index);
+				Node parent = level == 1 ? root : session.getNode(path.substring(0, path.lastIndexOf('/')));
+				parent.addNode(path.substring(path.lastIndexOf('/') + 1));
+				contentNodes++;
+				operation(1);
+			}
+		}
+		save();
+		manifest.put("contentNodes", contentNodes);
+		manifest.put("contentMillis", System.currentTimeMillis() - phase);
+
+		// ACEs, with their own random sequence so the content shape does not change them
+		phase = System.currentTimeMillis();
+		random = new Random(seed * 31 + 7);
+		AccessRights allow = new AccessRightsImpl();
+		allow.getGranted().add(new SerializablePrivilege(Privilege.JCR_READ));
+		allow.getGranted().add(new SerializablePrivilege(Privilege.JCR_ADD_CHILD_NODES));
+		AccessRights deny = new AccessRightsImpl();
+		deny.getDenied().add(new SerializablePrivilege(Privilege.JCR_REMOVE_NODE));
+		long aces = 0;
+		for (int level = 1; level <= contentDepth; level++) {
+			if (!hasAces(level)) {
+				continue;
+			}
+			long count = getContentNodeCount(level);
+			for (long index = 0; index < count; index++) {
+				String path = getContentPath(level, index);
+				service.setAclByName(session, getGroupName(random.nextInt(groups)), path, allow);
+				aces++;
+				if (random.nextDouble() < denyRatio) {
+					service.setAclByName(session, getGroupName(random.nextInt(groups)), path, deny);
+					aces++;
+				}
+				operation(1);
+			}
+		}
+		save();
+		manifest.put("aces", aces);
+		manifest.put("acesMillis", System.currentTimeMillis() - phase);
+
+		manifest.put("saves", saves);
+		manifest.put("elapsedMillis", System.currentTimeMillis() - start);
+		this.session = null;
+		return manifest;
+	}
+
+	private static boolean contains(int[] values, int length, int value) {
+		for (int i = 0; i < length; i++) {
+			if (values[i] == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Node getOrCreate(Node parent, String name) throws RepositoryException {
+		return parent.hasNode(name) ? parent.getNode(name) : parent.addNode(name);
+	}
+
+	private void operation(int count) throws RepositoryException {
+		pending += count;
+		if (pending >= batchSize) {
+			save();
+		}
+	}
+
+	private void save() throws RepositoryException {
+		if (session.hasPendingChanges()) {
+			session.save();
+			saves++;
+		}
+		pending = 0;
+	}
+
+	/**
+	 * Generates a dataset into an in memory repository and prints (or writes) the manifest.
+	 * The arguments are name=value pairs of the setters (users=1000 groups=100 ...) and
+	 * manifest=file.
+	 */
+	public static void main(String[] args) throws Exception {
+		DatasetGenerator generator = new DatasetGenerator();
+		File manifestFile = null;
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			String name = arg.substring(0, idx);
+			String value = arg.substring(idx + 1);
+			if ("manifest".equals(name)) {
+				manifestFile = new File(value);
+			} else {
+				generator.set(name, value);
+			}
+		}
+		EmbeddedRepository repository = new EmbeddedRepository();
+		repository.start();
+		SecurityManagerFixture fixture = new SecurityManagerFixture(repository, new HashMap<String, Object>());
+		Session session = repository.loginAdministrative();
+		try {
+			DatasetManifest manifest = generator.generate(fixture.getService(), session);
+			System.out.println(manifest);
+			if (manifestFile != null) {
+				manifest.write(manifestFile);
+			}
+		} finally {
+			session.logout();
+			fixture.deactivate();
+			repository.shutdown();
+		}
+	}
+
+	/**
+	 * Sets a parameter by name (seed, prefix, users, groups, groupFanout, membershipsPerUser,
+	 * contentRoot, contentDepth, contentFanout, aceInterval, denyRatio, batchSize)
+	 */
+	public DatasetGenerator set(String name, String value) {
+		if ("seed".equals(name)) setSeed(Long.parseLong(value));
+		else if ("prefix".equals(name)) setPrefix(value);
+		else if ("users".equals(name)) setUsers(Integer.parseInt(value));
+		else if ("groups".equals(name)) setGroups(Integer.parseInt(value));
+		else if ("groupFanout".equals(name)) setGroupFanout(Integer.parseInt(value));
+		else if ("membershipsPerUser".equals(name)) setMembershipsPerUser(Integer.parseInt(value));
+		else if ("contentRoot".equals(name)) setContentRoot(value);
+		else if ("contentDepth".equals(name)) setContentDepth(Integer.parseInt(value));
+		else if ("contentFanout".equals(name)) setContentFanout(Integer.parseInt(value));
+		else if ("aceInterval".equals(name)) setAceInterval(Integer.parseInt(value));
+		else if ("denyRatio".equals(name)) setDenyRatio(Double.parseDouble(value));
+		else if ("batchSize".equals(name)) setBatchSize(Integer.parseInt(value));
+		else throw new IllegalArgumentException("Unknown dataset parameter: " + name);
+		return this;
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Size and shape of a generated dataset (see {@link DatasetGenerator}), written as a
+ * properties file so the runs can be compared and the fixtures identified.
+ */
+public class DatasetManifest {
+
+	private final Map<String, Object> values = new TreeMap<String, Object>();
+
+	void put(String key, Object value) {
+		values.put(key, value);
+	}
+
+	public Object get(String key) {
+		return values.get(key);
+	}
+
+	public long getLong(String key) {
+		Object value = values.get(key);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	public Map<String, Object> getValues() {
+		return values;
+	}
+
+	public void write(File file) throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "liveSense security manager dataset");
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return values.toString();
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.jcr.Credentials;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.apache.sling.jcr.api.SlingRepository;
+
+/**
+ * In memory Jackrabbit {@link TransientRepository} for the benchmarks, exposed as a
+ * {@link SlingRepository} to the security manager. An administrative session is kept
+ * open for the lifetime of the repository, otherwise the transient repository would
+ * shut down when the last session logs out.
+ *
+ * An other configuration (e.g. a cluster node) can be given by its resource name and
+ * the @NAME@ tokens to replace in it.
+ */
+public class EmbeddedRepository {
+
+	static final String ADMIN_ID = "admin";
+	static final String WORKSPACE = "default";
+	static final String DEFAULT_CONFIG = "repository.xml";
+
+	private final String configName;
+	private final Map<String, String> replacements;
+
+	private File home;
+	private TransientRepository repository;
+	private SlingRepository slingRepository;
+	private Session keeper;
+
+	public EmbeddedRepository() {
+		this(DEFAULT_CONFIG, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * @param The resource name of the repository configuration, relative to this class
+	 * @param Token name - value pairs replaced as @NAME@ in the configuration
+	 */
+	public EmbeddedRepository(String configName, Map<String, String> replacements) {
+		this.configName = configName;
+		this.replacements = replacements;
+	}
+
+	public void start() throws IOException, RepositoryException {
+		home = File.createTempFile("liveSense-securityManager-", "-repository");
+		if (!home.delete() || !home.mkdirs()) {
+			throw new IOException("Could not create repository home: " + home);
+		}
+		File config = new File(home, "repository.xml");
+		InputStream in = EmbeddedRepository.class.getResourceAsStream(configName);
+		if (in == null) {
+			throw new IOException("Repository configuration not found: " + configName);
+		}
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			byte[] chunk = new byte[4096];
+			for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+				buffer.write(chunk, 0, n);
+			}
+			String xml = buffer.toString("UTF-8");
+			for (Map.Entry<String, String> entry : replacements.entrySet()) {
+				xml = xml.replace("@" + entry.getKey() + "@", entry.getValue());
+			}
+			OutputStream out = new FileOutputStream(config);
+			try {
+				out.write(xml.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		repository = new TransientRepository(config, home);
+		keeper = loginAdministrative();
+		slingRepository = (SlingRepository) Proxy.newProxyInstance(SlingRepository.class.getClassLoader(),
+				new Class<?>[]{SlingRepository.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("getDefaultWorkspace".equals(name)) {
+					return WORKSPACE;
+				} else if ("loginAdministrative".equals(name)) {
+					return args != null && args[0] != null ? loginAdministrative((String) args[0]) : loginAdministrative();
+				} else if ("loginService".equals(name)) {
+					return loginAdministrative();
+				} else if ("equals".equals(name)) {
+					return proxy == args[0];
+				} else if ("hashCode".equals(name)) {
+					return System.identityHashCode(proxy);
+				}
+				try {
+					return method.invoke(repository, args);
+				} catch (InvocationTargetException ex) {
+					throw ex.getCause();
+				}
+			}
+		});
+	}
+
+	public SlingRepository getSlingRepository() {
+		return slingRepository;
+	}
+
+	public Session loginAdministrative() throws RepositoryException {
+		return loginAdministrative(WORKSPACE);
+	}
+
+	public Session loginAdministrative(String workspace) throws RepositoryException {
+		Credentials credentials = new SimpleCredentials(ADMIN_ID, ADMIN_ID.toCharArray());
+		return repository.login(credentials, workspace);
+	}
+
+	/**
+	 * Returns a session of the given user, impersonated by the administrator
+	 */
+	public Session login(String userId) throws RepositoryException {
+		return keeper.impersonate(new SimpleCredentials(userId, new char[0]));
+	}
+
+	public void shutdown() {
+		if (keeper != null) {
+			keeper.logout();
+			keeper = null;
+		}
+		if (repository != null) {
+			repository.shutdown();
+			repository = null;
+		}
+		delete(home);
+	}
+
+	private static void delete(File file) {
+		if (file == null) {
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.observation.Event;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Events/second of the observation event path handling: the former split("/")
+ * based parsing against the in place {@link SecurityEventClassifier}.
+ *
+ * Run with -prof gc to see the allocation rate of the two variants.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventClassifierBenchmark {
+
+	/** The events of a user creation (see UserResourceChangeListener) plus membership and ACL events */
+	static final int[] TYPES = {
+		Event.PROPERTY_ADDED, Event.PROPERTY_ADDED, Event.PROPERTY_ADDED, Event.PROPERTY_ADDED,
+		Event.PROPERTY_ADDED, Event.PROPERTY_ADDED, Event.PROPERTY_CHANGED, Event.NODE_REMOVED,
+		Event.NODE_ADDED
+	};
+	static final String[] PATHS = {
+		"/rep:security/rep:authorizables/rep:users/t/te/test001/jcr:primaryType",
+		"/rep:security/rep:authorizables/rep:users/t/te/test001/jcr:uuid",
+		"/rep:security/rep:authorizables/rep:users/t/te/test001/rep:password",
+		"/rep:security/rep:authorizables/rep:users/t/te/test001/jcr:created",
+		"/rep:security/rep:authorizables/rep:users/t/te/test001/rep:principalName",
+		"/rep:security/rep:authorizables/rep:users/t/te/test001/jcr:createdBy",
+		"/rep:security/rep:authorizables/rep:groups/g/gr/group001/rep:members",
+		"/rep:security/rep:authorizables/rep:users/t/te/test002",
+		"/content/site/page/rep:policy/allow0"
+	};
+
+	private final SecurityEventClassifier classifier = new SecurityEventClassifier();
+
+	/**
+	 * The path handling of UserResourceChangeListener before the classifier
+	 */
+	private static String legacyClassify(int type, String path) {
+		String pathParts[] = path.split("/");
+		if (type == Event.NODE_REMOVED) {
+			return pathParts[pathParts.length-1];
+		}
+		if (type == Event.PROPERTY_ADDED && path.endsWith("/jcr:primaryType")) {
+			return pathParts[pathParts.length-2];
+		}
+		if ("rep:members".equals(pathParts[pathParts.length-1])) {
+			return pathParts[pathParts.length-2];
+		}
+		return null;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(9)
+	public void legacySplit(Blackhole bh) {
+		for (int i = 0; i < PATHS.length; i++) {
+			bh.consume(legacyClassify(TYPES[i], PATHS[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(9)
+	public void classifier(Blackhole bh) {
+		for (int i = 0; i < PATHS.length; i++) {
+			if (classifier.classify(TYPES[i], PATHS[i])) {
+				bh.consume(classifier.kind);
+				bh.consume(classifier.idEnd - classifier.idStart);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of the service instrumentation (see {@link ServiceInstrumentation}) on a
+ * trivial operation, so the difference between the variants is the cost per call:
+ * <ul>
+ * <li>direct: the disabled mode, the service object is called directly</li>
+ * <li>instrumented: the call goes through the measuring proxy</li>
+ * <li>record: the histogram update alone</li>
+ * </ul>
+ * The contended variants run the same with 4 threads on one operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentationBenchmark {
+
+	public interface Operation {
+		String call(String principal, String path);
+	}
+
+	static final class TrivialOperation implements Operation {
+		@Override
+		public String call(String principal, String path) {
+			return principal;
+		}
+	}
+
+	private Operation direct;
+	private Operation instrumented;
+	private LatencyHistogram histogram;
+	private final String principal = "user001";
+	private final String path = "/content/site";
+
+	@Setup
+	public void setup() {
+		direct = new TrivialOperation();
+		instrumented = (Operation) new ServiceInstrumentation(direct, Operation.class).newProxy();
+		histogram = new LatencyHistogram();
+	}
+
+	@Benchmark
+	public String direct() {
+		return direct.call(principal, path);
+	}
+
+	@Benchmark
+	public String instrumented() {
+		return instrumented.call(principal, path);
+	}
+
+	@Benchmark
+	public void record() {
+		histogram.record(System.nanoTime() & 0xffff);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String directContended() {
+		return direct.call(principal, path);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String instrumentedContended() {
+		return instrumented.call(principal, path);
+	}
+}
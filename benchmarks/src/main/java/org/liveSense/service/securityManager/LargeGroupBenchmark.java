@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.Group;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write cost of the membership of a group with {@link #members} members, with the plain
+ * rep:members layout (largeGroupThreshold=0) and with the sharded layout of the large groups.
+ *
+ * The group is filled with addPrincipalsToGroup, then every invocation adds one of the probe
+ * users to the group and removes it, saving the session after both, so the size of the group
+ * does not change during the measurement.
+ *
+ * Filling a plain group is quadratic (every add rewrites the whole property), the plain
+ * 1000000 members setup takes hours, so the default parameters stop at 100000 members. Run the
+ * 1000000 members group with the sharded layout only:
+ * java -jar target/benchmarks.jar LargeGroupBenchmark -p members=1000000 -p largeGroupThreshold=10000
+ *
+ * The setup exports the users and groups after the fill and fails when a shard of the group
+ * shows up in the export, the shards are storage and must not be seen as groups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LargeGroupBenchmark {
+
+	static final String GROUP = "large-group";
+	static final String PASSWORD = "password";
+	static final int PROBES = 256;
+	static final int BATCH_SIZE = 1000;
+
+	@Param({"10000", "100000"})
+	public int members;
+
+	/** largeGroup.threshold, 0 keeps the plain layout */
+	@Param({"0", "10000"})
+	public int largeGroupThreshold;
+
+	private EmbeddedRepository repository;
+	private SecurityManagerFixture fixture;
+	private SecurityManagerService service;
+	private Session adminSession;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		repository = new EmbeddedRepository();
+		repository.start();
+		Map<String, Object> configuration = new HashMap<String, Object>();
+		configuration.put(SecurityManagerServiceImpl.PROP_LARGE_GROUP_THRESHOLD, largeGroupThreshold);
+		configuration.put(SecurityManagerServiceImpl.PROP_MEMBERSHIP_BATCH_SIZE, BATCH_SIZE);
+		fixture = new SecurityManagerFixture(repository, configuration);
+		service = fixture.getService();
+		adminSession = repository.loginAdministrative();
+
+		Map<String, Object> noProperties = Collections.emptyMap();
+		service.addGroup(adminSession, GROUP, noProperties);
+		List<String> names = new ArrayList<String>(BATCH_SIZE);
+		for (int i = 0; i < members + PROBES; i++) {
+			service.addUser(adminSession, getUserName(i), PASSWORD, noProperties);
+			if (i < members) {
+				names.add(getUserName(i));
+			}
+			if ((i + 1) % BATCH_SIZE == 0) {
+				adminSession.save();
+				fill(names);
+			}
+		}
+		adminSession.save();
+		fill(names);
+		checkExport();
+	}
+
+	private void checkExport() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.exportAuthorizables(adminSession, Channels.newChannel(out));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(out.toByteArray()), "UTF-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.contains(MemberShards.SHARD_SEPARATOR)) {
+				throw new IllegalStateException("The export contains a shard of " + GROUP + ": " + line);
+			}
+		}
+	}
+
+	private void fill(List<String> names) throws Exception {
+		if (!names.isEmpty()) {
+			service.addPrincipalsToGroup(adminSession, GROUP, names);
+			names.clear();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (adminSession != null) {
+			adminSession.logout();
+		}
+		if (fixture != null) {
+			fixture.deactivate();
+		}
+		if (repository != null) {
+			repository.shutdown();
+		}
+	}
+
+	static String getUserName(int i) {
+		return "large-user-" + i;
+	}
+
+	private String nextProbe() {
+		return getUserName(members + (counter.getAndIncrement() & Integer.MAX_VALUE) % PROBES);
+	}
+
+	@Benchmark
+	public boolean addAndRemoveMember() throws Exception {
+		String probe = nextProbe();
+		service.addPrincipalToGroup(adminSession, probe, GROUP);
+		adminSession.save();
+		boolean ret = service.removePrincipalFromGroup(adminSession, probe, GROUP);
+		adminSession.save();
+		return ret;
+	}
+
+	@Benchmark
+	public List<Group> getDeclaredMemberOfByName() throws Exception {
+		return service.getDeclaredMemberOfByName(adminSession, getUserName((counter.getAndIncrement() & Integer.MAX_VALUE) % members));
+	}
+}
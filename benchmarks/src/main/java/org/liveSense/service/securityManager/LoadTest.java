@@ -0,0 +1,445 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Session;
+import javax.jcr.security.Privilege;
+
+/**
+ * Multi-threaded load test of the {@link SecurityManagerServiceImpl} on an in memory repository
+ * populated by the {@link DatasetGenerator}.
+ *
+ * Every thread has its own administrative and user session and picks the operations randomly
+ * by the configured weights:
+ * <ul>
+ * <li>lookup - getPrincipalPropertiesByName of a random user (pooled session)</li>
+ * <li>memberOf - getEffectiveMemberOfIdsByName of a random user (pooled session)</li>
+ * <li>members - getEffectiveMembersByName of a random group</li>
+ * <li>capability - canAddChildren / canDelete / canModifyProperties of a random content node
+ * with the user session</li>
+ * <li>accessRights - getEffectiveAccessRights of a random content node</li>
+ * <li>aclWrite - setAclByName of a random group on a random content node and save</li>
+ * <li>membershipWrite - removes a random user from a random group and adds it back (or the other
+ * way around), saving after both steps</li>
+ * </ul>
+ * The writes of the threads touch the same nodes, so a save can fail with an
+ * {@link InvalidItemStateException}, these are counted as conflicts (the session is refreshed
+ * and the thread goes on), every other failure is counted as an error. Every save is counted.
+ *
+ * The service is bound to a {@link UserResourceChangeListener}, so the writes invalidate its
+ * caches as in the container.
+ *
+ * After the warmup the throughput, latency percentiles, errors and conflicts are reported per
+ * operation and written as a properties file, together with the configuration and the dataset
+ * manifest, so the runs can be compared.
+ *
+ * Run with name=value arguments, e.g.:
+ * <pre>java -cp target/benchmarks.jar org.liveSense.service.securityManager.LoadTest threads=32 duration=60 aclWrite=5 results=load.properties users=10000</pre>
+ * The dataset parameters are the ones of {@link DatasetGenerator#set(String, String)}.
+ */
+public class LoadTest {
+
+	static final String[] OPERATIONS = {"lookup", "memberOf", "members", "capability", "accessRights", "aclWrite", "membershipWrite"};
+	static final int[] DEFAULT_WEIGHTS = {30, 20, 5, 35, 5, 3, 2};
+
+	private int threads = 16;
+	private int warmupSeconds = 10;
+	private int durationSeconds = 30;
+	private int decisionCache = SecurityManagerServiceImpl.DEFAULT_PERMISSION_CACHE_DECISIONS;
+	private final int[] weights = DEFAULT_WEIGHTS.clone();
+	private final DatasetGenerator dataset = new DatasetGenerator().setPrefix("load-").setContentRoot("/load");
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+	private final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+	private final AtomicLong[] conflicts = new AtomicLong[OPERATIONS.length];
+	private final AtomicLong[] saves = new AtomicLong[OPERATIONS.length];
+
+	private volatile boolean running;
+	private volatile boolean measuring;
+
+	public LoadTest() {
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			histograms[i] = new LatencyHistogram();
+			errors[i] = new AtomicLong();
+			conflicts[i] = new AtomicLong();
+			saves[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Sets a parameter by name: threads, warmup, duration (seconds), decisionCache, the weight
+	 * of an operation by its name or a dataset parameter
+	 */
+	public LoadTest set(String name, String value) {
+		if ("threads".equals(name)) {
+			threads = Integer.parseInt(value);
+		} else if ("warmup".equals(name)) {
+			warmupSeconds = Integer.parseInt(value);
+		} else if ("duration".equals(name)) {
+			durationSeconds = Integer.parseInt(value);
+		} else if ("decisionCache".equals(name)) {
+			decisionCache = Integer.parseInt(value);
+		} else {
+			for (int i = 0; i < OPERATIONS.length; i++) {
+				if (OPERATIONS[i].equals(name)) {
+					weights[i] = Integer.parseInt(value);
+					return this;
+				}
+			}
+			dataset.set(name, value);
+		}
+		return this;
+	}
+
+	/**
+	 * Runs the load test
+	 *
+	 * @return The results as sorted name - value pairs
+	 */
+	public Map<String, Object> run() throws Exception {
+		Map<String, Object> results = new TreeMap<String, Object>();
+		EmbeddedRepository repository = new EmbeddedRepository();
+		repository.start();
+		try {
+			Map<String, Object> configuration = new HashMap<String, Object>();
+			configuration.put(SecurityManagerServiceImpl.PROP_PERMISSION_CACHE_DECISIONS, decisionCache);
+			SecurityManagerFixture fixture = new SecurityManagerFixture(repository, configuration);
+			// The observation of the writes invalidates the caches of the service, as in the container
+			ChangeListenerFixture changeListener = new ChangeListenerFixture(repository, fixture.getChangeListener());
+			try {
+				Session session = repository.loginAdministrative();
+				try {
+					DatasetManifest manifest = dataset.generate(fixture.getService(), session);
+					for (Map.Entry<String, Object> entry : manifest.getValues().entrySet()) {
+						results.put("dataset." + entry.getKey(), entry.getValue());
+					}
+				} finally {
+					session.logout();
+				}
+				long elapsed = drive(repository, fixture.getService());
+				report(results, elapsed);
+			} finally {
+				changeListener.deactivate();
+				fixture.deactivate();
+			}
+		} finally {
+			repository.shutdown();
+		}
+		return results;
+	}
+
+	private long drive(EmbeddedRepository repository, SecurityManagerService service) throws Exception {
+		int total = 0;
+		for (int weight : weights) {
+			total += weight;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("At least one operation must have a positive weight");
+		}
+		running = true;
+		measuring = false;
+		CountDownLatch ready = new CountDownLatch(threads);
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i, repository, service, total, ready);
+			workers[i].start();
+		}
+		ready.await();
+		Thread.sleep(warmupSeconds * 1000L);
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			errors[i].set(0);
+			conflicts[i].set(0);
+			saves[i].set(0);
+		}
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep(durationSeconds * 1000L);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		running = false;
+		for (Worker worker : workers) {
+			worker.join();
+		}
+		for (Worker worker : workers) {
+			if (worker.failure != null) {
+				throw worker.failure;
+			}
+		}
+		return elapsed;
+	}
+
+	private void report(Map<String, Object> results, long elapsed) {
+		results.put("threads", threads);
+		results.put("warmupSeconds", warmupSeconds);
+		results.put("durationSeconds", durationSeconds);
+		results.put("decisionCache", decisionCache);
+		double seconds = elapsed / 1e9;
+		long totalCount = 0;
+		long totalErrors = 0;
+		long totalConflicts = 0;
+		long totalSaves = 0;
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			String prefix = "op." + OPERATIONS[i] + ".";
+			LatencyHistogram histogram = histograms[i];
+			long count = histogram.getCount();
+			results.put(prefix + "weight", weights[i]);
+			results.put(prefix + "count", count);
+			results.put(prefix + "errors", errors[i].get());
+			results.put(prefix + "throughput", round(count / seconds));
+			results.put(prefix + "avgMicros", round(histogram.getAverage() / 1e3));
+			results.put(prefix + "p50Micros", round(histogram.getPercentile(0.5) / 1e3));
+			results.put(prefix + "p90Micros", round(histogram.getPercentile(0.9) / 1e3));
+			results.put(prefix + "p99Micros", round(histogram.getPercentile(0.99) / 1e3));
+			results.put(prefix + "p999Micros", round(histogram.getPercentile(0.999) / 1e3));
+			if (saves[i].get() > 0 || conflicts[i].get() > 0) {
+				results.put(prefix + "saves", saves[i].get());
+				results.put(prefix + "conflicts", conflicts[i].get());
+				results.put(prefix + "conflictRate", round((double) conflicts[i].get() / (saves[i].get() + conflicts[i].get())));
+			}
+			totalCount += count;
+			totalErrors += errors[i].get();
+			totalConflicts += conflicts[i].get();
+			totalSaves += saves[i].get();
+		}
+		results.put("total.count", totalCount);
+		results.put("total.errors", totalErrors);
+		results.put("total.throughput", round(totalCount / seconds));
+		results.put("total.saves", totalSaves);
+		results.put("total.conflicts", totalConflicts);
+		results.put("total.conflictRate", totalSaves + totalConflicts == 0 ? 0 : round((double) totalConflicts / (totalSaves + totalConflicts)));
+	}
+
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	private static boolean isConflict(Throwable ex) {
+		for (Throwable t = ex; t != null; t = t.getCause()) {
+			if (t instanceof InvalidItemStateException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private class Worker extends Thread {
+
+		private final EmbeddedRepository repository;
+		private final SecurityManagerService service;
+		private final int totalWeight;
+		private final CountDownLatch ready;
+		private final Random random;
+		private final AccessRights rights;
+		private Session adminSession;
+		private Session userSession;
+		/** The current operation is measured */
+		private boolean measured;
+		volatile Exception failure;
+
+		Worker(int index, EmbeddedRepository repository, SecurityManagerService service, int totalWeight, CountDownLatch ready) {
+			super("load-" + index);
+			this.repository = repository;
+			this.service = service;
+			this.totalWeight = totalWeight;
+			this.ready = ready;
+			this.random = new Random(index);
+			rights = new AccessRightsImpl();
+			rights.getGranted().add(new SerializablePrivilege(Privilege.JCR_READ));
+		}
+
+		@Override
+		public void run() {
+			try {
+				adminSession = repository.loginAdministrative();
+				userSession = repository.login(dataset.getUserName(random.nextInt(dataset.getUsers())));
+			} catch (Exception ex) {
+				failure = ex;
+				ready.countDown();
+				return;
+			}
+			ready.countDown();
+			try {
+				while (running) {
+					int op = pick();
+					measured = measuring;
+					long start = System.nanoTime();
+					try {
+						execute(op);
+					} catch (Exception ex) {
+						if (measured) {
+							if (isConflict(ex)) {
+								conflicts[op].incrementAndGet();
+							} else {
+								errors[op].incrementAndGet();
+							}
+						}
+						refresh();
+					}
+					if (measured) {
+						histograms[op].record(System.nanoTime() - start);
+					}
+				}
+			} finally {
+				userSession.logout();
+				adminSession.logout();
+			}
+		}
+
+		private int pick() {
+			int r = random.nextInt(totalWeight);
+			for (int i = 0; i < weights.length; i++) {
+				r -= weights[i];
+				if (r < 0) {
+					return i;
+				}
+			}
+			return weights.length - 1;
+		}
+
+		private String randomUser() {
+			return dataset.getUserName(random.nextInt(dataset.getUsers()));
+		}
+
+		private String randomGroup() {
+			return dataset.getGroupName(random.nextInt(dataset.getGroups()));
+		}
+
+		private String randomContent() {
+			int level = 1 + random.nextInt(Math.max(1, dataset.getContentDepth()));
+			return dataset.getContentPath(level, (long) (random.nextDouble() * dataset.getContentNodeCount(level)));
+		}
+
+		/**
+		 * Saves the administrative session and counts the save of the operation
+		 */
+		private void save(int op) throws Exception {
+			adminSession.save();
+			if (measured) {
+				saves[op].incrementAndGet();
+			}
+		}
+
+		/**
+		 * Executes the operation
+		 */
+		private void execute(int op) throws Exception {
+			switch (op) {
+			case 0:
+				service.getPrincipalPropertiesByName(randomUser());
+				break;
+			case 1:
+				service.getEffectiveMemberOfIdsByName(randomUser());
+				break;
+			case 2:
+				service.getEffectiveMembersByName(adminSession, randomGroup());
+				break;
+			case 3:
+				String path = randomContent();
+				switch (random.nextInt(3)) {
+				case 0:
+					service.canAddChildren(userSession, path);
+					break;
+				case 1:
+					service.canDelete(userSession, path);
+					break;
+				default:
+					service.canModifyProperties(userSession, path);
+				}
+				break;
+			case 4:
+				service.getEffectiveAccessRights(adminSession, randomContent());
+				break;
+			case 5:
+				service.setAclByName(adminSession, randomGroup(), randomContent(), rights);
+				save(op);
+				break;
+			default:
+				String user = randomUser();
+				String group = randomGroup();
+				if (service.removePrincipalFromGroup(adminSession, user, group)) {
+					save(op);
+					service.addPrincipalToGroup(adminSession, user, group);
+				} else {
+					service.addPrincipalToGroup(adminSession, user, group);
+					save(op);
+					service.removePrincipalFromGroup(adminSession, user, group);
+				}
+				save(op);
+			}
+		}
+
+		private void refresh() {
+			try {
+				adminSession.refresh(false);
+			} catch (Exception ex) {
+				// The next operation fails if the session is unusable
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		File resultsFile = null;
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			String name = arg.substring(0, idx);
+			String value = arg.substring(idx + 1);
+			if ("results".equals(name)) {
+				resultsFile = new File(value);
+			} else {
+				test.set(name, value);
+			}
+		}
+		Map<String, Object> results = test.run();
+		for (Map.Entry<String, Object> entry : results.entrySet()) {
+			System.out.println(entry.getKey() + "=" + entry.getValue());
+		}
+		if (resultsFile != null) {
+			write(results, resultsFile);
+		}
+	}
+
+	static void write(Map<String, Object> results, File file) throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, Object> entry : results.entrySet()) {
+			properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "liveSense security manager load test");
+		} finally {
+			out.close();
+		}
+	}
+}
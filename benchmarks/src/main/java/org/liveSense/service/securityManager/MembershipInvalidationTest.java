@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+import javax.jcr.security.Privilege;
+
+/**
+ * Checks that a membership change invalidates the cached permission decisions before the
+ * save returns.
+ *
+ * The users and groups are stored in the security workspace (see repository.xml), the content
+ * in the default one. A group is granted jcr:addChildNodes on a node, then the user is added
+ * to and removed from the group. Right after each save (no wait, and no
+ * {@link UserResourceChangeListener} is running) {@link SecurityManagerService#hasPrivileges(String, String, String...)},
+ * which evaluates with the cached group set of the user, has to see the new membership. Only
+ * the synchronous listener of the service can evict the group set that early.
+ *
+ * Exits with 1 when a check fails. Run by mvn verify of the benchmarks module, or with:
+ * <pre>java -cp target/benchmarks.jar org.liveSense.service.securityManager.MembershipInvalidationTest</pre>
+ */
+public class MembershipInvalidationTest {
+
+	static final String USER = "invalidation-user";
+	static final String GROUP = "invalidation-group";
+	static final String NODE = "invalidation-content";
+	static final String PASSWORD = "password";
+
+	/**
+	 * Runs the test
+	 *
+	 * @param The failed checks are added to this list
+	 */
+	public void run(List<String> failures) throws Exception {
+		EmbeddedRepository repository = new EmbeddedRepository();
+		repository.start();
+		try {
+			SecurityManagerFixture fixture = new SecurityManagerFixture(repository, new HashMap<String, Object>());
+			Session session = repository.loginAdministrative();
+			try {
+				SecurityManagerService service = fixture.getService();
+				Map<String, Object> noProperties = Collections.emptyMap();
+				service.addUser(session, USER, PASSWORD, noProperties);
+				service.addGroup(session, GROUP, noProperties);
+				String path = session.getRootNode().addNode(NODE).getPath();
+				session.save();
+				AccessRights rights = new AccessRightsImpl();
+				rights.getGranted().add(new SerializablePrivilege(Privilege.JCR_ADD_CHILD_NODES));
+				service.setAclByName(session, GROUP, path, rights);
+				session.save();
+
+				// Caches the group set of the user
+				check(failures, !service.hasPrivileges(USER, path, Privilege.JCR_ADD_CHILD_NODES), "the user has the privilege of the group before it is a member");
+
+				service.addPrincipalToGroup(session, USER, GROUP);
+				session.save();
+				check(failures, service.hasPrivileges(USER, path, Privilege.JCR_ADD_CHILD_NODES), "the added membership is not seen after the save, the cached group set is stale");
+
+				service.removePrincipalFromGroup(session, USER, GROUP);
+				session.save();
+				check(failures, !service.hasPrivileges(USER, path, Privilege.JCR_ADD_CHILD_NODES), "the removed membership is still seen after the save, the cached group set is stale");
+			} finally {
+				session.logout();
+				fixture.deactivate();
+			}
+		} finally {
+			repository.shutdown();
+		}
+	}
+
+	private static void check(List<String> failures, boolean condition, String message) {
+		if (!condition) {
+			failures.add(message);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> failures = new ArrayList<String>();
+		new MembershipInvalidationTest().run(failures);
+		for (String failure : failures) {
+			System.out.println("FAILED: " + failure);
+		}
+		System.out.println(failures.isEmpty() ? "OK" : failures.size() + " check(s) failed");
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.liveSense.core.Configurator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Creates and activates a {@link SecurityManagerServiceImpl} outside of the OSGi container:
+ * the references are injected by reflection, the component and bundle contexts are
+ * proxies (service registrations are accepted and ignored).
+ */
+public final class SecurityManagerFixture {
+
+	static final String DIGEST = "SHA1";
+	static final String ENCODING = "UTF-8";
+
+	private final SecurityManagerServiceImpl service;
+	private final ComponentContext componentContext;
+
+	/**
+	 * @param The repository
+	 * @param The component configuration (see the PROP_ constants of SecurityManagerServiceImpl)
+	 */
+	public SecurityManagerFixture(EmbeddedRepository repository, Map<String, Object> configuration) throws Exception {
+		service = new SecurityManagerServiceImpl();
+		inject(service, "repository", repository.getSlingRepository());
+		service.configurator = createConfigurator();
+
+		componentContext = createComponentContext(configuration);
+		service.activate(componentContext);
+	}
+
+	/**
+	 * Returns a component context stub with the given configuration. Its bundle context accepts
+	 * and ignores the service registrations.
+	 */
+	static ComponentContext createComponentContext(Map<String, Object> configuration) {
+		final Dictionary<String, Object> properties = new Hashtable<String, Object>(configuration);
+		final BundleContext bundleContext = (BundleContext) stub(BundleContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("registerService".equals(method.getName())) {
+					return stub(ServiceRegistration.class, null);
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+		return (ComponentContext) stub(ComponentContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getProperties".equals(method.getName())) {
+					return properties;
+				} else if ("getBundleContext".equals(method.getName())) {
+					return bundleContext;
+				}
+				return defaultValue(proxy, method, args);
+			}
+		});
+	}
+
+	public SecurityManagerService getService() {
+		return service;
+	}
+
+	/**
+	 * The service as {@link SecurityChangeListener}, to be bound to a {@link ChangeListenerFixture}
+	 */
+	public SecurityChangeListener getChangeListener() {
+		return service;
+	}
+
+	public void deactivate() {
+		service.deactivate(componentContext);
+	}
+
+	static void inject(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	/**
+	 * The configurator is an interface or a component class depending on the liveSense core version
+	 */
+	private static Configurator createConfigurator() throws Exception {
+		if (Configurator.class.isInterface()) {
+			return (Configurator) stub(Configurator.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("getDigest".equals(method.getName())) {
+						return DIGEST;
+					} else if ("getEncoding".equals(method.getName())) {
+						return ENCODING;
+					}
+					return defaultValue(proxy, method, args);
+				}
+			});
+		}
+		return Configurator.class.newInstance();
+	}
+
+	static Object stub(final Class<?> type, final InvocationHandler handler) {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return handler != null ? handler.invoke(proxy, method, args) : defaultValue(proxy, method, args);
+			}
+		});
+	}
+
+	static Object defaultValue(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("toString".equals(name)) {
+			return proxy.getClass().getInterfaces()[0].getSimpleName() + " stub";
+		}
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Session;
+import javax.jcr.security.Privilege;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the SecurityManagerService operations on an in memory Jackrabbit repository.
+ *
+ * The dataset is made by the {@link DatasetGenerator}: {@link #users} users and {@link #groups}
+ * groups, the groups form a binary tree, every user is a member of one random group and there
+ * is one content node per group granting a random group jcr:read and jcr:addChildNodes. The
+ * lookups and checks cycle through the users and the content nodes.
+ *
+ * Run e.g. with: java -jar target/benchmarks.jar SecurityManagerServiceBenchmark -p users=1000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SecurityManagerServiceBenchmark {
+
+	static final String CONTENT_PATH = "/bench";
+	static final String PASSWORD = "password";
+
+	@Param({"100", "1000"})
+	public int users;
+
+	@Param({"10", "100"})
+	public int groups;
+
+	/** permissionCache.decisions, 0 disables the shared decision cache */
+	@Param({"0", "100000"})
+	public int decisionCache;
+
+	private EmbeddedRepository repository;
+	private SecurityManagerFixture fixture;
+	private SecurityManagerService service;
+	private Session adminSession;
+	private Session userSession;
+	private AccessRights rights;
+	private DatasetGenerator dataset;
+	private final AtomicInteger counter = new AtomicInteger();
+	private final AtomicInteger created = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		repository = new EmbeddedRepository();
+		repository.start();
+		Map<String, Object> configuration = new HashMap<String, Object>();
+		configuration.put(SecurityManagerServiceImpl.PROP_PERMISSION_CACHE_DECISIONS, decisionCache);
+		fixture = new SecurityManagerFixture(repository, configuration);
+		service = fixture.getService();
+		adminSession = repository.loginAdministrative();
+
+		rights = new AccessRightsImpl();
+		rights.getGranted().add(new SerializablePrivilege(Privilege.JCR_READ));
+		rights.getGranted().add(new SerializablePrivilege(Privilege.JCR_ADD_CHILD_NODES));
+
+		dataset = new DatasetGenerator()
+				.setPrefix("bench-")
+				.setUsers(users)
+				.setGroups(groups)
+				.setGroupFanout(2)
+				.setMembershipsPerUser(1)
+				.setContentRoot(CONTENT_PATH)
+				.setContentDepth(1)
+				.setContentFanout(groups)
+				.setDenyRatio(0);
+		dataset.generate(service, adminSession);
+		userSession = repository.login(dataset.getUserName(users - 1));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (userSession != null) {
+			userSession.logout();
+		}
+		if (adminSession != null) {
+			adminSession.logout();
+		}
+		if (fixture != null) {
+			fixture.deactivate();
+		}
+		if (repository != null) {
+			repository.shutdown();
+		}
+	}
+
+	private String contentPath(int i) {
+		return dataset.getContentPath(1, i);
+	}
+
+	private int next(int bound) {
+		return (counter.getAndIncrement() & Integer.MAX_VALUE) % bound;
+	}
+
+	@Benchmark
+	public User addUser() throws Exception {
+		Map<String, Object> properties = Collections.emptyMap();
+		User ret = service.addUser(adminSession, "bench-new-" + created.getAndIncrement(), PASSWORD, properties);
+		adminSession.save();
+		return ret;
+	}
+
+	@Benchmark
+	public User getUserByName() throws Exception {
+		return service.getUserByName(adminSession, dataset.getUserName(next(users)));
+	}
+
+	@Benchmark
+	public List<Group> getEffectiveMemberOfByName() throws Exception {
+		return service.getEffectiveMemberOfByName(adminSession, dataset.getUserName(next(users)));
+	}
+
+	@Benchmark
+	public List<Authorizable> getEffectiveMembersByName() throws Exception {
+		return service.getEffectiveMembersByName(adminSession, dataset.getGroupName(next(groups)));
+	}
+
+	@Benchmark
+	public void setAclByName() throws Exception {
+		int i = next(groups);
+		service.setAclByName(adminSession, dataset.getGroupName(i), contentPath(i), rights);
+		adminSession.save();
+	}
+
+	@Benchmark
+	public Map<?, AccessRights> getEffectiveAccessRights() throws Exception {
+		return service.getEffectiveAccessRights(adminSession, contentPath(next(groups)));
+	}
+
+	@Benchmark
+	public boolean canAddChildren() {
+		return service.canAddChildren(userSession, contentPath(next(groups)));
+	}
+
+	@Benchmark
+	public boolean canDelete() {
+		return service.canDelete(userSession, contentPath(next(groups)));
+	}
+
+	@Benchmark
+	public boolean canModifyProperties() {
+		return service.canModifyProperties(userSession, contentPath(next(groups)));
+	}
+
+	@Benchmark
+	public boolean canReadAccessControl() {
+		return service.canReadAccessControl(userSession, contentPath(next(groups)));
+	}
+}
@@ -31,6 +31,8 @@ import java.util.Set;
  */
 public class AccessRightsImpl implements AccessRights {
 
+		private static final String[] NO_PRIVILEGES = new String[0];
+
 		private Set<SerializablePrivilege> granted = new HashSet<SerializablePrivilege>();
 		private Set<SerializablePrivilege> denied = new HashSet<SerializablePrivilege>();
 
@@ -51,6 +53,9 @@ public class AccessRightsImpl implements AccessRights {
 		}
 
 		public String[] getGrantedAsString() {
+			if (granted.isEmpty()) {
+				return NO_PRIVILEGES;
+			}
 			String[] privStr = new String[granted.size()];
 			int i = 0;
 			for (SerializablePrivilege privilege : granted) {
@@ -61,6 +66,9 @@ public class AccessRightsImpl implements AccessRights {
 		}
 
 		public String[] getDeniedAsString() {
+			if (denied.isEmpty()) {
+				return NO_PRIVILEGES;
+			}
 			String[] privStr = new String[denied.size()];
 			int i = 0;
 			for (SerializablePrivilege privilege : denied) {
@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.liveSense.service.securityManager.exceptions.InternalException;
+import org.liveSense.service.securityManager.exceptions.SecurityManagerException;
+
+/**
+ * Work done with a pooled administrative session.
+ *
+ * The session and every object obtained from it (Authorizable, Node, ...) are valid only
+ * until doInSession returns, the session is handed to an other caller afterwards. The
+ * result must not contain such objects, return the IDs or the values instead. The pending
+ * changes of the session are discarded when it is released.
+ *
+ * @see SecurityManagerService#doWithAdministrativeSession(AdministrativeSessionCallback)
+ */
+public interface AdministrativeSessionCallback<T> {
+
+	/**
+	 * @param The borrowed administrative session
+	 * @return The detached result
+	 */
+	T doInSession(Session session) throws RepositoryException, SecurityManagerException, InternalException;
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of the pre-authenticated administrative sessions used by the session-less
+ * read-only methods of the security manager.
+ *
+ * The sessions are created on demand up to the maximum size. Before a session is
+ * handed out, it's checked to be live and refreshed, so it sees the latest saved state;
+ * the transient changes are discarded when the session is released.
+ */
+final class AdministrativeSessionPool implements SessionPoolMetrics {
+	private static final Logger log = LoggerFactory.getLogger(AdministrativeSessionPool.class);
+
+	private final SlingRepository repository;
+	private final int maxSessions;
+	private final long borrowTimeoutMillis;
+
+	private final LinkedBlockingDeque<Session> idle = new LinkedBlockingDeque<Session>();
+	private final AtomicInteger liveSessions = new AtomicInteger(0);
+	private final AtomicLong borrowCount = new AtomicLong(0);
+	private final AtomicLong waitCount = new AtomicLong(0);
+	private final AtomicLong discardedCount = new AtomicLong(0);
+	private final AtomicLong borrowNanos = new AtomicLong(0);
+	private volatile long maxBorrowNanos = 0;
+	private volatile boolean closed = false;
+
+	AdministrativeSessionPool(SlingRepository repository, int maxSessions, long borrowTimeoutMillis) {
+		this.repository = repository;
+		this.maxSessions = maxSessions;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+
+	/**
+	 * Borrow a session. The session has to be given back with {@link #release(Session)}.
+	 *
+	 * @throws RepositoryException if no session is available in the borrow timeout
+	 */
+	Session borrow() throws RepositoryException {
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				if (closed) {
+					throw new RepositoryException("Session pool is closed");
+				}
+				Session session = idle.pollFirst();
+				if (session == null) {
+					session = create();
+				}
+				if (session == null) {
+					waitCount.incrementAndGet();
+					try {
+						session = idle.pollFirst(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RepositoryException("Interrupted while waiting for session", e);
+					}
+					if (session == null) {
+						throw new RepositoryException("No session available in " + borrowTimeoutMillis + "ms");
+					}
+				}
+				if (isHealthy(session)) {
+					return session;
+				}
+				discardedCount.incrementAndGet();
+				discard(session);
+			}
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			borrowCount.incrementAndGet();
+			borrowNanos.addAndGet(elapsed);
+			if (elapsed > maxBorrowNanos) {
+				maxBorrowNanos = elapsed;
+			}
+		}
+	}
+
+	/**
+	 * Give back the borrowed session
+	 */
+	void release(Session session) {
+		if (session == null) return;
+		try {
+			if (!closed && session.isLive()) {
+				if (session.hasPendingChanges()) {
+					session.refresh(false);
+				}
+				idle.offerFirst(session);
+				if (!closed) return;
+				idle.remove(session);
+			}
+		} catch (RepositoryException e) {
+			log.warn("Could not release session", e);
+		}
+		discard(session);
+	}
+
+	void close() {
+		closed = true;
+		Session session;
+		while ((session = idle.pollFirst()) != null) {
+			discard(session);
+		}
+	}
+
+	private Session create() throws RepositoryException {
+		while (true) {
+			int act = liveSessions.get();
+			if (act >= maxSessions) {
+				return null;
+			}
+			if (liveSessions.compareAndSet(act, act + 1)) {
+				break;
+			}
+		}
+		try {
+			return repository.loginAdministrative(null);
+		} catch (RepositoryException e) {
+			liveSessions.decrementAndGet();
+			throw e;
+		} catch (RuntimeException e) {
+			liveSessions.decrementAndGet();
+			throw e;
+		}
+	}
+
+	private boolean isHealthy(Session session) {
+		try {
+			if (!session.isLive()) {
+				return false;
+			}
+			session.refresh(false);
+			return true;
+		} catch (RepositoryException e) {
+			log.warn("Session health check failed", e);
+			return false;
+		}
+	}
+
+	private void discard(Session session) {
+		liveSessions.decrementAndGet();
+		try {
+			if (session.isLive()) {
+				session.logout();
+			}
+		} catch (RuntimeException e) {
+			log.warn("Could not logout session", e);
+		}
+	}
+
+	@Override
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	@Override
+	public int getLiveSessions() {
+		return liveSessions.get();
+	}
+
+	@Override
+	public int getIdleSessions() {
+		return idle.size();
+	}
+
+	@Override
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	@Override
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	@Override
+	public long getDiscardedCount() {
+		return discardedCount.get();
+	}
+
+	@Override
+	public long getAverageBorrowNanos() {
+		long count = borrowCount.get();
+		return count == 0 ? 0 : borrowNanos.get() / count;
+	}
+
+	@Override
+	public long getMaxBorrowNanos() {
+		return maxBorrowNanos;
+	}
+}
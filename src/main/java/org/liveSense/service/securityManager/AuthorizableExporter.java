@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Iterator;
+
+import javax.jcr.Binary;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.Query;
+import org.apache.jackrabbit.api.security.user.QueryBuilder;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+
+/**
+ * Streams every user and group as one JSON line:
+ * <pre>{"id":"john","group":false,"principal":"john","memberOf":["staff"],"properties":{"email":{"type":"String","values":["john@example.com"]}}}</pre>
+ * The properties are the ones returned by {@link SecurityManagerService#getPrincipalPropertiesByName(Session, String)},
+ * written from the JCR values without creating GenericValues, the binary values are written as
+ * their size only. memberOf contains the declared groups, so the group hierarchy can be rebuilt
+ * from the lines. The member shards of the large groups are not exported, memberOf contains
+ * their group instead (see {@link MemberShards}).
+ *
+ * The authorizables are queried in pages ordered by the principal name, the next page starts
+ * after the last principal of the previous one, so neither the result set nor the output is held
+ * in memory: a line is encoded into a fixed size buffer and written to the channel when it fills up.
+ */
+final class AuthorizableExporter {
+
+	private static final String PRINCIPAL_NAME = "rep:principalName";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final WritableByteChannel channel;
+	private final int pageSize;
+	private final CharsetEncoder encoder = UTF8.newEncoder();
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final StringBuilder line = new StringBuilder(1024);
+
+	AuthorizableExporter(WritableByteChannel channel, int pageSize) {
+		this.channel = channel;
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * Exports the authorizables visible to the session
+	 *
+	 * @return The number of the exported authorizables
+	 */
+	long export(Session session) throws RepositoryException, IOException {
+		UserManager userManager = AccessControlUtil.getUserManager(session);
+		ValueFactory valueFactory = session.getValueFactory();
+		long count = 0;
+		String last = null;
+		while (true) {
+			final Value bound = last == null ? null : valueFactory.createValue(last);
+			Iterator<Authorizable> page = userManager.findAuthorizables(new Query() {
+				@Override
+				public <T> void build(QueryBuilder<T> builder) {
+					builder.setSortOrder("@" + PRINCIPAL_NAME, QueryBuilder.Direction.ASCENDING);
+					if (bound == null) {
+						builder.setLimit(0, pageSize);
+					} else {
+						builder.setLimit(bound, pageSize);
+					}
+				}
+			});
+			int inPage = 0;
+			while (page.hasNext()) {
+				Authorizable authorizable = page.next();
+				if (!MemberShards.isShard(authorizable)) {
+					write(userManager, authorizable);
+					count++;
+				}
+				last = authorizable.getPrincipal().getName();
+				inPage++;
+			}
+			if (inPage < pageSize) {
+				break;
+			}
+		}
+		flush();
+		return count;
+	}
+
+	private void write(UserManager userManager, Authorizable authorizable) throws RepositoryException, IOException {
+		line.setLength(0);
+		line.append("{\"id\":");
+		string(authorizable.getID());
+		line.append(",\"group\":").append(authorizable.isGroup());
+		line.append(",\"principal\":");
+		string(authorizable.getPrincipal().getName());
+		line.append(",\"memberOf\":[");
+		boolean first = true;
+		for (Group group : MemberShards.getDeclaredMemberOf(userManager, authorizable)) {
+			if (!first) {
+				line.append(',');
+			}
+			string(group.getID());
+			first = false;
+		}
+		line.append("],\"properties\":{");
+		Iterator<String> names = authorizable.getPropertyNames();
+		first = true;
+		while (names.hasNext()) {
+			String name = names.next();
+			Value[] values = authorizable.getProperty(name);
+			if (values == null) {
+				continue;
+			}
+			if (!first) {
+				line.append(',');
+			}
+			string(name);
+			line.append(":{\"type\":");
+			string(PropertyType.nameFromValue(values.length > 0 ? values[0].getType() : PropertyType.STRING));
+			line.append(",\"values\":[");
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					line.append(',');
+				}
+				value(values[i]);
+			}
+			line.append("]}");
+			first = false;
+		}
+		line.append("}}\n");
+		encode();
+	}
+
+	private void value(Value value) throws RepositoryException {
+		switch (value.getType()) {
+		case PropertyType.LONG:
+			line.append(value.getLong());
+			break;
+		case PropertyType.DOUBLE:
+			double d = value.getDouble();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				string(Double.toString(d));
+			} else {
+				line.append(d);
+			}
+			break;
+		case PropertyType.BOOLEAN:
+			line.append(value.getBoolean());
+			break;
+		case PropertyType.BINARY:
+			Binary binary = value.getBinary();
+			try {
+				line.append("{\"size\":").append(binary.getSize()).append('}');
+			} finally {
+				binary.dispose();
+			}
+			break;
+		default:
+			string(value.getString());
+		}
+	}
+
+	private void string(String value) {
+		line.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				line.append("\\\"");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					line.append("\\u00");
+					line.append(Character.forDigit(c >> 4, 16));
+					line.append(Character.forDigit(c & 0xF, 16));
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		line.append('"');
+	}
+
+	private void encode() throws IOException {
+		CharBuffer chars = CharBuffer.wrap(line);
+		encoder.reset();
+		while (true) {
+			CoderResult result = encoder.encode(chars, buffer, true);
+			if (result.isOverflow()) {
+				drain();
+			} else if (result.isUnderflow()) {
+				break;
+			} else {
+				result.throwException();
+			}
+		}
+		while (encoder.flush(buffer).isOverflow()) {
+			drain();
+		}
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void flush() throws IOException {
+		if (buffer.position() > 0) {
+			drain();
+		}
+	}
+}
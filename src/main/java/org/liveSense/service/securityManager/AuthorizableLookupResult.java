@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+
+/**
+ * Result of the batch authorizable lookup: the found authorizables by the requested
+ * name and the names which were not found, both in the requested order.
+ *
+ * @see SecurityManagerService#getAuthorizablesByNames(javax.jcr.Session, java.util.Collection)
+ */
+public class AuthorizableLookupResult {
+
+	private final Map<String, Authorizable> found = new LinkedHashMap<String, Authorizable>();
+	private final Set<String> missing = new LinkedHashSet<String>();
+
+	void addFound(String name, Authorizable authorizable) {
+		found.put(name, authorizable);
+	}
+
+	void addMissing(String name) {
+		missing.add(name);
+	}
+
+	/**
+	 * The found authorizables by the requested name
+	 */
+	public Map<String, Authorizable> getFound() {
+		return Collections.unmodifiableMap(found);
+	}
+
+	/**
+	 * The requested names which do not exist (or are not visible to the session)
+	 */
+	public Set<String> getMissing() {
+		return Collections.unmodifiableSet(missing);
+	}
+
+	/**
+	 * Returns the authorizable of the requested name, null if it was not found
+	 */
+	public Authorizable get(String name) {
+		return found.get(name);
+	}
+
+	@Override
+	public String toString() {
+		return "found: " + found.size() + ", missing: " + missing.size();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple concurrent cache with an upper size limit. The reads take no lock;
+ * when the limit is reached the cache is cleared, so there is no per-entry
+ * bookkeeping on the read path.
+ */
+final class BoundedCache<K, V> {
+
+	private final ConcurrentHashMap<K, V> map = new ConcurrentHashMap<K, V>();
+	private final int maxSize;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	BoundedCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	V get(K key) {
+		V value = map.get(key);
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	void put(K key, V value) {
+		if (maxSize <= 0) return;
+		if (map.size() >= maxSize) {
+			map.clear();
+		}
+		map.put(key, value);
+	}
+
+	void remove(K key) {
+		map.remove(key);
+	}
+
+	void clear() {
+		map.clear();
+	}
+
+	int size() {
+		return map.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the UserManager, AccessControlManager and Node calls made inside each call of
+ * the service, to find the operations making many repository calls (N+1 patterns).
+ *
+ * The Session and Node arguments of the service call are replaced by counting proxies,
+ * which wrap the UserManager, AccessControlManager and Node objects they return. The
+ * administrative sessions borrowed during the call are wrapped too (see {@link #wrap(Session)}).
+ * The calls exceeding the call count or duration threshold are logged to the
+ * org.liveSense.service.securityManager.slowOps logger as one key=value record:
+ *
+ * <pre>slowOp operation=canDelete user=john principal= path=/content/a durationMicros=5120 userManagerCalls=0 accessControlManagerCalls=4 nodeCalls=0</pre>
+ *
+ * The principal is the first String argument not starting with '/', the path the first one
+ * starting with '/' or the path of the first Node argument.
+ */
+final class JcrCallTracer implements InvocationHandler {
+
+	private static final Logger slowOpLog = LoggerFactory.getLogger("org.liveSense.service.securityManager.slowOps");
+
+	/**
+	 * The counters of a service call, used by one thread only
+	 */
+	static final class Trace {
+		int userManagerCalls;
+		int accessControlManagerCalls;
+		int nodeCalls;
+
+		int getTotal() {
+			return userManagerCalls + accessControlManagerCalls + nodeCalls;
+		}
+	}
+
+	private static final ThreadLocal<Trace> currentTrace = new ThreadLocal<Trace>();
+
+	private static final int SESSION = 0;
+	private static final int USER_MANAGER = 1;
+	private static final int ACCESS_CONTROL_MANAGER = 2;
+	private static final int NODE = 3;
+
+	/**
+	 * Delegates to the wrapped object and counts the calls
+	 */
+	private static final class CountingHandler implements InvocationHandler {
+		private final Object target;
+		private final Trace trace;
+		private final int kind;
+
+		CountingHandler(Object target, Trace trace, int kind) {
+			this.target = target;
+			this.trace = trace;
+			this.kind = kind;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (kind) {
+			case USER_MANAGER: trace.userManagerCalls++; break;
+			case ACCESS_CONTROL_MANAGER: trace.accessControlManagerCalls++; break;
+			case NODE: trace.nodeCalls++; break;
+			default: break;
+			}
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					args[i] = unwrap(args[i]);
+				}
+			}
+			Object ret;
+			try {
+				ret = method.invoke(target, args);
+			} catch (InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+			if (kind == USER_MANAGER || kind == ACCESS_CONTROL_MANAGER) {
+				return ret;
+			}
+			if (ret instanceof Node) {
+				return wrap(ret, trace, NODE);
+			} else if (ret instanceof UserManager) {
+				return wrap(ret, trace, USER_MANAGER);
+			} else if (ret instanceof AccessControlManager) {
+				return wrap(ret, trace, ACCESS_CONTROL_MANAGER);
+			} else if (ret instanceof Session) {
+				return wrap(ret, trace, SESSION);
+			}
+			return ret;
+		}
+	}
+
+	private final Object target;
+	private final Class<?> type;
+	private final int callThreshold;
+	private final long durationThresholdNanos;
+
+	/**
+	 * @param The traced service
+	 * @param The service interface
+	 * @param The number of the repository calls above which the call is logged
+	 * @param The duration in milliseconds above which the call is logged
+	 */
+	JcrCallTracer(Object target, Class<?> type, int callThreshold, long durationThresholdMillis) {
+		this.target = target;
+		this.type = type;
+		this.callThreshold = callThreshold;
+		this.durationThresholdNanos = durationThresholdMillis * 1000000L;
+	}
+
+	/**
+	 * Returns the tracing proxy of the target
+	 */
+	Object newProxy() {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return method.invoke(target, args);
+		}
+		Trace trace = new Trace();
+		Trace previous = currentTrace.get();
+		currentTrace.set(trace);
+
+		String user = null;
+		String principal = null;
+		String path = null;
+		if (args != null) {
+			for (int i = 0; i < args.length; i++) {
+				Object arg = args[i];
+				if (arg instanceof Session) {
+					user = ((Session) arg).getUserID();
+					args[i] = wrap(arg, trace, SESSION);
+				} else if (arg instanceof Node) {
+					if (path == null) {
+						path = getPath((Node) arg);
+					}
+					args[i] = wrap(arg, trace, NODE);
+				} else if (arg instanceof String) {
+					String value = (String) arg;
+					if (value.startsWith("/")) {
+						if (path == null) path = value;
+					} else if (principal == null) {
+						principal = value;
+					}
+				}
+			}
+		}
+
+		long start = System.nanoTime();
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		} finally {
+			long duration = System.nanoTime() - start;
+			currentTrace.set(previous);
+			if (trace.getTotal() >= callThreshold || duration >= durationThresholdNanos) {
+				slowOpLog.info("slowOp operation={} user={} principal={} path={} durationMicros={} userManagerCalls={} accessControlManagerCalls={} nodeCalls={}",
+						new Object[]{method.getName(), user, principal, path, duration / 1000,
+						trace.userManagerCalls, trace.accessControlManagerCalls, trace.nodeCalls});
+			}
+		}
+	}
+
+	private static String getPath(Node node) {
+		try {
+			return node.getPath();
+		} catch (RepositoryException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the counting proxy of the session if a traced call is running on this thread
+	 */
+	static Session wrap(Session session) {
+		Trace trace = currentTrace.get();
+		return trace == null ? session : (Session) wrap(session, trace, SESSION);
+	}
+
+	/**
+	 * Returns the object wrapped by a counting proxy, or the object itself
+	 */
+	static Object unwrap(Object object) {
+		if (object != null && Proxy.isProxyClass(object.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(object);
+			if (handler instanceof CountingHandler) {
+				return ((CountingHandler) handler).target;
+			}
+		}
+		return object;
+	}
+
+	/**
+	 * Wraps the object in a proxy implementing all of its public interfaces.
+	 * If the proxy can not be created the object is returned uncounted.
+	 */
+	private static Object wrap(Object object, Trace trace, int kind) {
+		if (Proxy.isProxyClass(object.getClass()) && Proxy.getInvocationHandler(object) instanceof CountingHandler) {
+			return object;
+		}
+		Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass()) {
+			collectInterfaces(c, interfaces);
+		}
+		try {
+			return Proxy.newProxyInstance(object.getClass().getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()]),
+					new CountingHandler(object, trace, kind));
+		} catch (IllegalArgumentException ex) {
+			return object;
+		}
+	}
+
+	private static void collectInterfaces(Class<?> c, Set<Class<?>> interfaces) {
+		for (Class<?> i : c.getInterfaces()) {
+			if (Modifier.isPublic(i.getModifiers())) {
+				interfaces.add(i);
+			}
+			collectInterfaces(i, interfaces);
+		}
+	}
+}
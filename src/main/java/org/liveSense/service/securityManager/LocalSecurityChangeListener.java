@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Synchronous observation listener of the ACL and membership changes made on this cluster node.
+ *
+ * Jackrabbit calls it from the saving thread before save() returns, so the caches of the
+ * {@link SecurityManagerServiceImpl} are invalidated before the next call of the same session.
+ * The {@link UserResourceChangeListener} reports the same changes later (and the changes of
+ * the other cluster nodes), invalidating twice is harmless.
+ *
+ * Only in-memory invalidation is done here, the repository is not read while the save is in progress.
+ */
+final class LocalSecurityChangeListener implements SynchronousEventListener {
+	private static final Logger log = LoggerFactory.getLogger(LocalSecurityChangeListener.class);
+
+	private final SecurityChangeListener target;
+
+	LocalSecurityChangeListener(SecurityChangeListener target) {
+		this.target = target;
+	}
+
+	@Override
+	public void onEvent(EventIterator events) {
+		// The events of one save, each changed ACL and group is reported once
+		Set<String> acls = new LinkedHashSet<String>();
+		Set<String> groups = new LinkedHashSet<String>();
+		// Called by the saving threads concurrently, the classifier is not shared
+		SecurityEventClassifier classifier = new SecurityEventClassifier();
+		while (events.hasNext()) {
+			Event event = events.nextEvent();
+			try {
+				String path = event.getPath();
+				if (classifier.classify(event.getType(), path)) {
+					if (classifier.kind == SecurityChangeDispatcher.Kind.ACL_CHANGED) {
+						acls.add(path.substring(classifier.idStart, classifier.idEnd));
+					} else if (classifier.kind == SecurityChangeDispatcher.Kind.MEMBERSHIP_CHANGED) {
+						groups.add(path.substring(classifier.idStart, classifier.idEnd));
+					}
+				}
+			} catch (RepositoryException ex) {
+				log.error(ex.getMessage(), ex);
+			}
+		}
+		for (String path : acls) {
+			target.aclChanged(path);
+		}
+		for (String group : groups) {
+			target.membershipChanged(group);
+		}
+	}
+}
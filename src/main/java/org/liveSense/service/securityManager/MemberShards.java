@@ -0,0 +1,292 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+
+/**
+ * Membership layout of the large groups.
+ *
+ * Jackrabbit keeps the members of a group in the multi-valued rep:members property, so adding
+ * a member rewrites the whole property. When a group reaches the threshold number of declared
+ * members, the new members are added to one of its hidden shard groups (group~shard-N, chosen
+ * by the hash of the member ID) instead. The shards are members of the group, so the effective
+ * membership and the access control evaluation do not change, and every write touches a
+ * property of about members / shards values only. The members added before the switch stay
+ * in the group.
+ *
+ * The shards are hidden by the membership methods of the service: the declared members of a
+ * group include the members of its shards, and the shards are left out of the memberOf lists
+ * (replaced by their group in the declared ones).
+ *
+ * A group is a shard only if its ID has the shard name form and its SHARD_OF_PROPERTY is the ID
+ * of the group before the separator, so a group created outside of the service with such a name
+ * stays an ordinary group. The service refuses to create the groups with the shard name form.
+ * The change events carry the node names only, they are mapped by the name form.
+ */
+final class MemberShards {
+
+	static final String SHARD_SEPARATOR = "~shard-";
+	/** Property of the sharded group, the number of the shards */
+	static final String SHARDS_PROPERTY = "securityManager.memberShards";
+	/** Property of the shard group, the ID of the sharded group */
+	static final String SHARD_OF_PROPERTY = "securityManager.shardOf";
+
+	private static final String REP_MEMBERS = "rep:members";
+	private static final int MEMBER_COUNT_CACHE_SIZE = 1024;
+
+	private final int threshold;
+	private final int shardCount;
+	/** Upper bound of the declared members of the unsharded groups: counted once, then incremented by the adds */
+	private final BoundedCache<String, AtomicLong> memberCounts = new BoundedCache<String, AtomicLong>(MEMBER_COUNT_CACHE_SIZE);
+
+	/**
+	 * @param Number of declared members from which a group is sharded, 0 disables the sharding
+	 * @param Number of the shards of a group
+	 */
+	MemberShards(int threshold, int shardCount) {
+		this.threshold = threshold;
+		this.shardCount = Math.max(1, shardCount);
+	}
+
+	/**
+	 * Returns true if the ID has the form of a shard ID (group~shard-N)
+	 */
+	static boolean hasShardName(String id) {
+		return id.indexOf(SHARD_SEPARATOR) > 0;
+	}
+
+	static boolean isShard(Authorizable authorizable) throws RepositoryException {
+		if (!authorizable.isGroup() || !hasShardName(authorizable.getID())) {
+			return false;
+		}
+		Value[] values = authorizable.getProperty(SHARD_OF_PROPERTY);
+		return values != null && values.length == 1 && values[0].getString().equals(getShardedGroupId(authorizable.getID()));
+	}
+
+	/**
+	 * Returns the ID of the sharded group of the shard
+	 */
+	static String getShardedGroupId(String shardId) {
+		return shardId.substring(0, shardId.indexOf(SHARD_SEPARATOR));
+	}
+
+	static boolean isShardOf(Authorizable authorizable, Group group) throws RepositoryException {
+		return isShard(authorizable) && getShardedGroupId(authorizable.getID()).equals(group.getID()) && getShards(group) > 0;
+	}
+
+	/**
+	 * Number of the shards of the group, 0 if it is not sharded
+	 */
+	static int getShards(Group group) throws RepositoryException {
+		Value[] values = group.getProperty(SHARDS_PROPERTY);
+		return values == null || values.length == 0 ? 0 : (int) values[0].getLong();
+	}
+
+	/**
+	 * Returns the group the member has to be added to: the group itself or its shard, which is
+	 * created when it does not exist. The group is switched to sharded layout when it has
+	 * threshold declared members.
+	 *
+	 * The group is checked for the member only when it is switched. Later only the shard of the
+	 * member is checked (by its addMember), reading the members of the large group on every add
+	 * would cost what the shards save. So a member added before the switch and added again is
+	 * declared in both, which {@link #removeMember(UserManager, Group, Authorizable)} handles.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The session of the workspace the group is stored in, used to count its members
+	 */
+	Group getTargetGroup(Session session, SecurityWorkspaceSession securitySession, UserManager userManager, Group group, Authorizable member) throws RepositoryException {
+		if (isShard(group)) {
+			return group;
+		}
+		int shards = getShards(group);
+		if (shards == 0) {
+			if (!reachedThreshold(securitySession, group)) {
+				return group;
+			}
+			shards = shardCount;
+			group.setProperty(SHARDS_PROPERTY, session.getValueFactory().createValue(shards));
+			memberCounts.remove(group.getID());
+			if (group.isDeclaredMember(member)) {
+				return group;
+			}
+		}
+		String shardId = group.getID() + SHARD_SEPARATOR + shardIndex(member, shards);
+		Authorizable shard = userManager.getAuthorizable(shardId);
+		if (shard == null) {
+			return createShard(session, userManager, group, shardId);
+		}
+		// An authorizable created outside of the service may hold the name
+		return isShardOf(shard, group) ? (Group) shard : group;
+	}
+
+	/**
+	 * Removes the member from its shard and from the group (a member added before the group
+	 * was sharded may be declared in both)
+	 *
+	 * @return True if the member was removed
+	 */
+	boolean removeMember(UserManager userManager, Group group, Authorizable member) throws RepositoryException {
+		boolean removed = false;
+		int shards = getShards(group);
+		if (shards > 0) {
+			Group shard = getShard(userManager, group, shardIndex(member, shards));
+			if (shard != null) {
+				removed = shard.removeMember(member);
+			}
+		}
+		return group.removeMember(member) || removed;
+	}
+
+	/**
+	 * Removes the shard groups of the group
+	 */
+	static void removeShards(UserManager userManager, Group group) throws RepositoryException {
+		int shards = getShards(group);
+		for (int i = 0; i < shards; i++) {
+			Group shard = getShard(userManager, group, i);
+			if (shard != null) {
+				shard.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the declared members of the group by the group (the group itself or its shard)
+	 * they are declared in. The shards are replaced by their members.
+	 */
+	static Map<Authorizable, Group> getDeclaredMembers(Group group) throws RepositoryException {
+		Map<Authorizable, Group> ret = new LinkedHashMap<Authorizable, Group>();
+		Iterator<Authorizable> iter = group.getDeclaredMembers();
+		while (iter.hasNext()) {
+			Authorizable member = iter.next();
+			if (isShardOf(member, group)) {
+				Iterator<Authorizable> shardMembers = ((Group) member).getDeclaredMembers();
+				while (shardMembers.hasNext()) {
+					ret.put(shardMembers.next(), (Group) member);
+				}
+			} else {
+				ret.put(member, group);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the declared groups of the authorizable, the shards replaced by their group
+	 */
+	static List<Group> getDeclaredMemberOf(UserManager userManager, Authorizable authorizable) throws RepositoryException {
+		Map<String, Group> ret = new LinkedHashMap<String, Group>();
+		Iterator<Group> iter = authorizable.declaredMemberOf();
+		while (iter.hasNext()) {
+			Group group = iter.next();
+			if (isShard(group)) {
+				String id = getShardedGroupId(group.getID());
+				if (!ret.containsKey(id)) {
+					Authorizable sharded = userManager.getAuthorizable(id);
+					if (sharded != null && sharded.isGroup()) {
+						ret.put(id, (Group) sharded);
+					}
+				}
+			} else {
+				ret.put(group.getID(), group);
+			}
+		}
+		return new ArrayList<Group>(ret.values());
+	}
+
+	/**
+	 * Returns the shard of the group with the index, null if it does not exist
+	 */
+	private static Group getShard(UserManager userManager, Group group, int index) throws RepositoryException {
+		Authorizable shard = userManager.getAuthorizable(group.getID() + SHARD_SEPARATOR + index);
+		return shard != null && isShardOf(shard, group) ? (Group) shard : null;
+	}
+
+	private static int shardIndex(Authorizable member, int shards) throws RepositoryException {
+		return (member.getID().hashCode() & Integer.MAX_VALUE) % shards;
+	}
+
+	private static Group createShard(Session session, UserManager userManager, Group group, final String shardId) throws RepositoryException {
+		Group shard = userManager.createGroup(new Principal() {
+			@Override
+			public String getName() {
+				return shardId;
+			}
+		});
+		ValueFactory valueFactory = session.getValueFactory();
+		shard.setProperty(SHARD_OF_PROPERTY, valueFactory.createValue(group.getID()));
+		group.addMember(shard);
+		return shard;
+	}
+
+	/**
+	 * Returns true if the unsharded group has threshold declared members. The members are counted
+	 * when the cached upper bound (the last count plus the adds since) reaches the threshold only,
+	 * so rep:members is not read on every add. The removals do not lower the bound, they cause
+	 * one recount.
+	 */
+	private boolean reachedThreshold(SecurityWorkspaceSession securitySession, Group group) throws RepositoryException {
+		if (threshold <= 0) {
+			return false;
+		}
+		String id = group.getID();
+		AtomicLong count = memberCounts.get(id);
+		if (count != null && count.incrementAndGet() < threshold) {
+			return false;
+		}
+		long counted = countDeclaredMembers(securitySession.get(), group);
+		if (counted >= threshold) {
+			return true;
+		}
+		// The member is added after the count
+		memberCounts.put(id, new AtomicLong(counted + 1));
+		return false;
+	}
+
+	/**
+	 * Number of the values of rep:members, read in the workspace of the group (the session of the
+	 * caller may be on an other workspace). With the tree based layout of Jackrabbit
+	 * (groupMembershipSplitSize) there is no such property, the group does not need the shards.
+	 */
+	private static long countDeclaredMembers(Session session, Group group) throws RepositoryException {
+		String path = group.getPath();
+		if (!session.nodeExists(path)) {
+			return 0;
+		}
+		Node node = session.getNode(path);
+		return node.hasProperty(REP_MEMBERS) ? node.getProperty(REP_MEMBERS).getValues().length : 0;
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per principal outcome of the bulk membership changes.
+ *
+ * @see SecurityManagerService#addPrincipalsToGroup(javax.jcr.Session, String, java.util.Collection)
+ * @see SecurityManagerService#removePrincipalsFromGroup(javax.jcr.Session, String, java.util.Collection)
+ */
+public class MembershipChangeResult implements Serializable {
+
+	public enum Outcome {
+		/** The principal was added to the group */
+		ADDED,
+		/** The principal was removed from the group */
+		REMOVED,
+		/** The group did not change: already a member, not a member or a refused (cyclic) membership */
+		UNCHANGED,
+		/** The principal does not exist */
+		NOT_FOUND,
+		/** The change was applied but the save of its chunk failed, so it was discarded */
+		FAILED
+	}
+
+	private final String groupName;
+	private final Map<String, Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+	private int saves;
+
+	public MembershipChangeResult(String groupName) {
+		this.groupName = groupName;
+	}
+
+	void setOutcome(String principal, Outcome outcome) {
+		outcomes.put(principal, outcome);
+	}
+
+	void addSave() {
+		saves++;
+	}
+
+	public String getGroupName() {
+		return groupName;
+	}
+
+	/**
+	 * The outcome by principal, in the requested order
+	 */
+	public Map<String, Outcome> getOutcomes() {
+		return Collections.unmodifiableMap(outcomes);
+	}
+
+	public Outcome getOutcome(String principal) {
+		return outcomes.get(principal);
+	}
+
+	/**
+	 * Number of the principals by outcome
+	 */
+	public Map<Outcome, Integer> getCounts() {
+		Map<Outcome, Integer> ret = new EnumMap<Outcome, Integer>(Outcome.class);
+		for (Outcome outcome : outcomes.values()) {
+			Integer count = ret.get(outcome);
+			ret.put(outcome, count == null ? 1 : count + 1);
+		}
+		return ret;
+	}
+
+	/**
+	 * Number of the saved chunks
+	 */
+	public int getSaves() {
+		return saves;
+	}
+
+	@Override
+	public String toString() {
+		return groupName + ": " + getCounts() + ", saves: " + saves;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes applied to the declared members of a group.
+ *
+ * @see SecurityManagerService#setGroupMembers(javax.jcr.Session, String, java.util.Collection)
+ */
+public class MembershipDelta implements Serializable {
+
+	private final String groupName;
+	private final List<String> added = new ArrayList<String>();
+	private final List<String> removed = new ArrayList<String>();
+	private final List<String> missing = new ArrayList<String>();
+	private final List<String> rejected = new ArrayList<String>();
+	private int unchanged;
+
+	public MembershipDelta(String groupName) {
+		this.groupName = groupName;
+	}
+
+	void addAdded(String principal) {
+		added.add(principal);
+	}
+
+	void addRemoved(String principal) {
+		removed.add(principal);
+	}
+
+	void addMissing(String principal) {
+		missing.add(principal);
+	}
+
+	void addRejected(String principal) {
+		rejected.add(principal);
+	}
+
+	void setUnchanged(int unchanged) {
+		this.unchanged = unchanged;
+	}
+
+	public String getGroupName() {
+		return groupName;
+	}
+
+	/**
+	 * The principals added to the group
+	 */
+	public List<String> getAdded() {
+		return Collections.unmodifiableList(added);
+	}
+
+	/**
+	 * The principals removed from the group
+	 */
+	public List<String> getRemoved() {
+		return Collections.unmodifiableList(removed);
+	}
+
+	/**
+	 * The requested principals which do not exist, they were not added
+	 */
+	public List<String> getMissing() {
+		return Collections.unmodifiableList(missing);
+	}
+
+	/**
+	 * The principals the group refused to add (e.g. the group itself or a cyclic membership)
+	 */
+	public List<String> getRejected() {
+		return Collections.unmodifiableList(rejected);
+	}
+
+	/**
+	 * Number of the requested principals which were members already
+	 */
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * True if the group was modified
+	 */
+	public boolean isChanged() {
+		return !added.isEmpty() || !removed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return groupName + ": added: " + added.size() + ", removed: " + removed.size() + ", unchanged: " + unchanged
+				+ ", missing: " + missing.size() + ", rejected: " + rejected.size();
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.security.auth.Subject;
+
+import org.apache.jackrabbit.core.SessionImpl;
+
+/**
+ * Permission decisions shared by the sessions having the same effective group set.
+ *
+ * The key of a decision is the canonical group set (interned by its order independent hash),
+ * the path and the privilege name, so the users of the same groups share the results. The
+ * shared decision is only used when it can not differ from the decision of the session:
+ * <ul>
+ * <li>administrators are left to their session</li>
+ * <li>sessions whose principals are not exactly the user and its effective groups (impersonated,
+ * pre-authenticated or service sessions, sessions logged in before a membership change) are left
+ * to their session</li>
+ * <li>users having access control entries of their own are left to their session</li>
+ * <li>decisions involving restricted entries (e.g. rep:glob) are left to the session</li>
+ * </ul>
+ *
+ * A membership change moves the user to another group set (the principal sets are evicted
+ * from the {@link PermissionEvaluator}), an ACL change drops all of the decisions. The local
+ * changes are reported synchronously by the {@link LocalSecurityChangeListener}, before the
+ * save returns.
+ *
+ * The principals having entries of their own are read by one query on the first use, then the
+ * principals of every changed ACL are added. A removed entry leaves its principal in the set,
+ * which only makes the principal bypass the shared decisions.
+ */
+final class PermissionDecisionCache {
+
+	static final int DENIED = 0;
+	static final int GRANTED = 1;
+	/** The decision has to be made by the session itself */
+	static final int SESSION = 2;
+	/** Flag added to the decision when it was served from the cache */
+	static final int CACHED = 4;
+
+	private static final Integer DENIED_DECISION = Integer.valueOf(DENIED);
+	private static final Integer GRANTED_DECISION = Integer.valueOf(GRANTED);
+	private static final Integer SESSION_DECISION = Integer.valueOf(SESSION);
+
+	private static final class DecisionKey {
+		private final PermissionEvaluator.PrincipalSet groups;
+		private final String path;
+		private final String privilege;
+		private final int hash;
+
+		DecisionKey(PermissionEvaluator.PrincipalSet groups, String path, String privilege) {
+			this.groups = groups;
+			this.path = path;
+			this.privilege = privilege;
+			this.hash = (31 * (int) (groups.groupHash ^ (groups.groupHash >>> 32)) + path.hashCode()) * 31 + privilege.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof DecisionKey)) return false;
+			DecisionKey other = (DecisionKey) obj;
+			// The group sets are interned
+			return groups == other.groups && hash == other.hash && path.equals(other.path) && privilege.equals(other.privilege);
+		}
+	}
+
+	private final PermissionEvaluator evaluator;
+	private final AdministrativeSessionPool sessionPool;
+
+	/** Group set hash -> canonical group set */
+	private final BoundedCache<Long, PermissionEvaluator.PrincipalSet> groupSets;
+	private final BoundedCache<DecisionKey, Integer> decisions;
+	/** The principal names having access control entries */
+	private final Set<String> principalsWithEntries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Paths of the changed ACLs whose principals are not in principalsWithEntries yet */
+	private final Queue<String> changedAcls = new ConcurrentLinkedQueue<String>();
+	private volatile boolean principalsWithEntriesLoaded;
+	private final Object principalsWithEntriesLock = new Object();
+
+	/** Incremented on every ACL change, the decisions evaluated before a change are not stored */
+	private final AtomicLong generation = new AtomicLong(0);
+
+	PermissionDecisionCache(PermissionEvaluator evaluator, AdministrativeSessionPool sessionPool, int principalCacheSize, int decisionCacheSize) {
+		this.evaluator = evaluator;
+		this.sessionPool = sessionPool;
+		groupSets = new BoundedCache<Long, PermissionEvaluator.PrincipalSet>(principalCacheSize);
+		decisions = new BoundedCache<DecisionKey, Integer>(decisionCacheSize);
+	}
+
+	/**
+	 * Returns the shared decision of the privilege for the user of the session
+	 *
+	 * @param The JCR session of the current user
+	 * @param The absolute path
+	 * @param The privilege name
+	 * @return {@link #GRANTED}, {@link #DENIED} or {@link #SESSION}, combined with {@link #CACHED} on cache hit
+	 */
+	int getDecision(Session session, String absPath, String privilege) throws RepositoryException {
+		String userId = session.getUserID();
+		if (userId == null) {
+			return SESSION;
+		}
+		Session adminSession = null;
+		try {
+			PermissionEvaluator.PrincipalSet principals = evaluator.getCachedPrincipalSet(userId);
+			if (principals == null) {
+				adminSession = sessionPool.borrow();
+				principals = evaluator.getPrincipalSet(adminSession, userId);
+				if (principals == null) {
+					return SESSION;
+				}
+			}
+			if (principals.admin || !hasPrincipals(session, principals)) {
+				return SESSION;
+			}
+			PermissionEvaluator.PrincipalSet groups = getGroupSet(principals);
+			if (groups == null) {
+				return SESSION;
+			}
+
+			if (!principalsWithEntriesLoaded || !changedAcls.isEmpty()) {
+				if (adminSession == null) {
+					adminSession = sessionPool.borrow();
+				}
+				updatePrincipalsWithEntries(adminSession);
+			}
+			if (principalsWithEntries.contains(principals.principalName)) {
+				return SESSION;
+			}
+
+			DecisionKey key = new DecisionKey(groups, absPath, privilege);
+			Integer decision = decisions.get(key);
+			if (decision == null) {
+				if (adminSession == null) {
+					adminSession = sessionPool.borrow();
+				}
+				long currentGeneration = generation.get();
+				int result = evaluator.evaluate(adminSession, groups, absPath, evaluator.getPrivilegeBits(adminSession, new String[]{privilege}));
+				if ((result & PermissionEvaluator.RESTRICTED) != 0) {
+					decision = SESSION_DECISION;
+				} else if ((result & PermissionEvaluator.GRANTED) != 0) {
+					decision = GRANTED_DECISION;
+				} else {
+					decision = DENIED_DECISION;
+				}
+				if (currentGeneration == generation.get()) {
+					decisions.put(key, decision);
+				}
+				return decision;
+			}
+			return decision | CACHED;
+		} finally {
+			if (adminSession != null) {
+				sessionPool.release(adminSession);
+			}
+		}
+	}
+
+	/**
+	 * Returns the canonical group-only principal set, null on hash collision
+	 */
+	private PermissionEvaluator.PrincipalSet getGroupSet(PermissionEvaluator.PrincipalSet principals) {
+		PermissionEvaluator.PrincipalSet ret = principals.shared;
+		if (ret != null) {
+			return ret;
+		}
+		Long hash = Long.valueOf(principals.groupHash);
+		ret = groupSets.get(hash);
+		if (ret == null) {
+			ret = new PermissionEvaluator.PrincipalSet(null, principals.groupNames, false);
+			groupSets.put(hash, ret);
+		} else if (!ret.groupNames.equals(principals.groupNames)) {
+			return null;
+		}
+		principals.shared = ret;
+		return ret;
+	}
+
+	/**
+	 * Checks that the principals of the session are the user and its effective groups the
+	 * decisions are shared by. The subject of a session is fixed at login, so it differs after
+	 * a membership change too.
+	 */
+	private static boolean hasPrincipals(Session session, PermissionEvaluator.PrincipalSet principals) {
+		if (!(session instanceof SessionImpl)) {
+			return false;
+		}
+		Subject subject = ((SessionImpl) session).getSubject();
+		int count = 0;
+		for (Principal principal : subject.getPrincipals()) {
+			String name = principal.getName();
+			if (!name.equals(principals.principalName) && !principals.groupNames.contains(name)) {
+				return false;
+			}
+			count++;
+		}
+		return count == principals.groupNames.size() + 1;
+	}
+
+	/**
+	 * Loads the principals having entries on the first call, then adds the principals of the changed ACLs.
+	 * A path is removed from the queue after its principals are added, so a concurrent decision can not
+	 * see the queue empty before that.
+	 */
+	private void updatePrincipalsWithEntries(Session session) throws RepositoryException {
+		synchronized (principalsWithEntriesLock) {
+			if (!principalsWithEntriesLoaded) {
+				QueryManager queryManager = session.getWorkspace().getQueryManager();
+				NodeIterator iter = queryManager.createQuery("//element(*, rep:ACE)", Query.XPATH).execute().getNodes();
+				while (iter.hasNext()) {
+					principalsWithEntries.add(iter.nextNode().getProperty("rep:principalName").getString());
+				}
+				principalsWithEntriesLoaded = true;
+			}
+			String path;
+			while ((path = changedAcls.peek()) != null) {
+				try {
+					for (PermissionEvaluator.Entry entry : evaluator.getEntries(session, path)) {
+						principalsWithEntries.add(entry.principalName);
+					}
+				} catch (PathNotFoundException ex) {
+					// Removed together with its node
+				}
+				changedAcls.poll();
+			}
+		}
+	}
+
+	/**
+	 * An ACL changed, all of the decisions are dropped. The ACL of the path has to be evicted
+	 * from the {@link PermissionEvaluator} before.
+	 */
+	void aclChanged(String path) {
+		generation.incrementAndGet();
+		changedAcls.add(path);
+		decisions.clear();
+	}
+
+	void clear() {
+		generation.incrementAndGet();
+		groupSets.clear();
+		decisions.clear();
+	}
+
+	/**
+	 * Changes may have been lost, the principals having entries are loaded again
+	 */
+	void changesDropped() {
+		principalsWithEntriesLoaded = false;
+		clear();
+	}
+
+	long getHits() {
+		return decisions.getHits();
+	}
+
+	long getMisses() {
+		return decisions.getMisses();
+	}
+}
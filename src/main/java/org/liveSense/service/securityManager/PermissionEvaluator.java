@@ -0,0 +1,376 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlEntry;
+import javax.jcr.security.AccessControlList;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.AccessControlPolicy;
+import javax.jcr.security.Privilege;
+
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlEntry;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+
+/**
+ * Evaluates the privileges of a principal on a path without a session of the principal.
+ *
+ * The evaluation uses the cached effective group set of the principal and the cached
+ * access control entries of the path and its ancestors, in the same order as the EntryCollector
+ * of Jackrabbit: the entries of the principal itself on the whole ancestor chain before any
+ * group entry, within each of the two the closest node first and the later entries of an ACL
+ * before the earlier ones. The first entry deciding a privilege wins.
+ *
+ * The entries with restrictions (e.g. rep:glob) are evaluated conservatively: a restricted deny
+ * is applied as unrestricted, a restricted allow is ignored, so the result never grants more
+ * than the repository would.
+ *
+ * The lookups are made with the given (administrative) session. The caches are invalidated
+ * by the security change events; a value read before an invalidation is not stored.
+ */
+final class PermissionEvaluator {
+
+	/**
+	 * The effective principal names of an authorizable
+	 */
+	static final class PrincipalSet {
+		final String principalName;
+		final Set<String> groupNames;
+		final boolean admin;
+		/** Order independent hash of the group names */
+		final long groupHash;
+		/** The canonical group-only set shared by the principals with the same groups, set by the decision cache */
+		volatile PrincipalSet shared;
+
+		PrincipalSet(String principalName, Set<String> groupNames, boolean admin) {
+			this.principalName = principalName;
+			this.groupNames = groupNames;
+			this.admin = admin;
+			long hash = groupNames.size();
+			for (String name : groupNames) {
+				hash += hash(name);
+			}
+			this.groupHash = hash;
+		}
+	}
+
+	/**
+	 * Compiled access control entry. The privileges are stored as bits of the non aggregate privileges.
+	 */
+	static final class Entry {
+		final String principalName;
+		final boolean allow;
+		final long privileges;
+		final boolean restricted;
+
+		Entry(String principalName, boolean allow, long privileges, boolean restricted) {
+			this.principalName = principalName;
+			this.allow = allow;
+			this.privileges = privileges;
+			this.restricted = restricted;
+		}
+	}
+
+	/** Result bit of {@link #evaluate(Session, PrincipalSet, String, long)}: all privileges are granted */
+	static final int GRANTED = 1;
+	/** Result bit of {@link #evaluate(Session, PrincipalSet, String, long)}: a restricted entry took part in the evaluation */
+	static final int RESTRICTED = 2;
+
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+
+	private final BoundedCache<String, PrincipalSet> principalCache;
+	private final BoundedCache<String, Entry[]> aclCache;
+
+	/** Incremented on every invalidation of the principal cache, the sets read before are not stored */
+	private final AtomicLong principalGeneration = new AtomicLong(0);
+	/** Incremented on every invalidation of the ACL cache, the entries read before are not stored */
+	private final AtomicLong aclGeneration = new AtomicLong(0);
+
+	/** Privilege name -> bits of the contained non aggregate privileges */
+	private final ConcurrentHashMap<String, Long> privilegeBits = new ConcurrentHashMap<String, Long>();
+	/** Non aggregate privilege name -> bit index, guarded by itself */
+	private final Map<String, Integer> bitIndexes = new HashMap<String, Integer>();
+
+	PermissionEvaluator(int principalCacheSize, int aclCacheSize) {
+		principalCache = new BoundedCache<String, PrincipalSet>(principalCacheSize);
+		aclCache = new BoundedCache<String, Entry[]>(aclCacheSize);
+	}
+
+	/**
+	 * Returns the effective principal set of the given authorizable
+	 *
+	 * @return null if the authorizable does not exist
+	 */
+	PrincipalSet getPrincipalSet(Session session, String principalId) throws RepositoryException {
+		PrincipalSet ret = principalCache.get(principalId);
+		if (ret != null) {
+			return ret;
+		}
+		long generation = principalGeneration.get();
+		UserManager userManager = AccessControlUtil.getUserManager(session);
+		Authorizable authorizable = userManager.getAuthorizable(principalId);
+		if (authorizable == null) {
+			return null;
+		}
+		Set<String> groupNames = new HashSet<String>();
+		groupNames.add(EveryonePrincipal.NAME);
+		Iterator<Group> iter = authorizable.memberOf();
+		while (iter.hasNext()) {
+			groupNames.add(iter.next().getPrincipal().getName());
+		}
+		boolean admin = !authorizable.isGroup() && ((User) authorizable).isAdmin();
+		ret = new PrincipalSet(authorizable.getPrincipal().getName(), Collections.unmodifiableSet(groupNames), admin);
+		if (generation == principalGeneration.get()) {
+			principalCache.put(principalId, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the bits of the given privileges
+	 */
+	long getPrivilegeBits(Session session, String[] privileges) throws RepositoryException {
+		long ret = 0;
+		AccessControlManager accessControlManager = null;
+		for (String name : privileges) {
+			Long bits = privilegeBits.get(name);
+			if (bits == null) {
+				if (accessControlManager == null) {
+					accessControlManager = AccessControlUtil.getAccessControlManager(session);
+				}
+				bits = getBits(accessControlManager.privilegeFromName(name));
+				privilegeBits.put(name, bits);
+			}
+			ret |= bits;
+		}
+		return ret;
+	}
+
+	private long getBits(Privilege privilege) throws RepositoryException {
+		Long bits = privilegeBits.get(privilege.getName());
+		if (bits != null) {
+			return bits;
+		}
+		long ret = 0;
+		if (privilege.isAggregate()) {
+			for (Privilege aggregate : privilege.getAggregatePrivileges()) {
+				if (!aggregate.isAggregate()) {
+					ret |= getBit(aggregate.getName());
+				}
+			}
+		} else {
+			ret = getBit(privilege.getName());
+		}
+		privilegeBits.put(privilege.getName(), ret);
+		return ret;
+	}
+
+	private long getBit(String name) throws RepositoryException {
+		synchronized (bitIndexes) {
+			Integer idx = bitIndexes.get(name);
+			if (idx == null) {
+				if (bitIndexes.size() >= 64) {
+					throw new RepositoryException("Too many privileges");
+				}
+				idx = bitIndexes.size();
+				bitIndexes.put(name, idx);
+			}
+			return 1L << idx;
+		}
+	}
+
+	/**
+	 * Returns the compiled entries of the ACL of the given node, in evaluation order (last entry first)
+	 */
+	Entry[] getEntries(Session session, String path) throws RepositoryException {
+		Entry[] ret = aclCache.get(path);
+		if (ret != null) {
+			return ret;
+		}
+		long generation = aclGeneration.get();
+		ret = NO_ENTRIES;
+		AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
+		for (AccessControlPolicy policy : accessControlManager.getPolicies(path)) {
+			if (policy instanceof AccessControlList) {
+				AccessControlEntry[] aces = ((AccessControlList) policy).getAccessControlEntries();
+				List<Entry> entries = new ArrayList<Entry>(aces.length);
+				for (int i = aces.length - 1; i >= 0; i--) {
+					AccessControlEntry ace = aces[i];
+					long bits = 0;
+					for (Privilege privilege : ace.getPrivileges()) {
+						bits |= getBits(privilege);
+					}
+					entries.add(new Entry(ace.getPrincipal().getName(), AccessControlUtil.isAllow(ace), bits, isRestricted(ace)));
+				}
+				ret = entries.toArray(new Entry[entries.size()]);
+				break;
+			}
+		}
+		if (generation == aclGeneration.get()) {
+			aclCache.put(path, ret);
+		}
+		return ret;
+	}
+
+	private static boolean isRestricted(AccessControlEntry ace) throws RepositoryException {
+		return ace instanceof JackrabbitAccessControlEntry && ((JackrabbitAccessControlEntry) ace).getRestrictionNames().length > 0;
+	}
+
+	/**
+	 * Evaluates the privileges
+	 *
+	 * @param The session used to read the ACLs
+	 * @param The principal set to evaluate
+	 * @param The absolute path
+	 * @param The privilege bits (see {@link #getPrivilegeBits(Session, String[])})
+	 * @return true if all of the privileges are granted
+	 */
+	boolean hasPrivileges(Session session, PrincipalSet principals, String absPath, long requested) throws RepositoryException {
+		return (evaluate(session, principals, absPath, requested) & GRANTED) != 0;
+	}
+
+	/**
+	 * Evaluates the privileges and reports whether restricted entries were involved
+	 *
+	 * @return the combination of {@link #GRANTED} and {@link #RESTRICTED}
+	 */
+	int evaluate(Session session, PrincipalSet principals, String absPath, long requested) throws RepositoryException {
+		if (principals.admin) {
+			return GRANTED;
+		}
+		Decision decision = new Decision();
+		// The entries of the principal itself on the whole ancestor chain precede the group entries
+		if (principals.principalName != null) {
+			evaluate(session, Collections.singleton(principals.principalName), absPath, requested, decision);
+		}
+		if (!decision.isDecided(requested)) {
+			evaluate(session, principals.groupNames, absPath, requested, decision);
+		}
+		return ((decision.allowed & requested) == requested ? GRANTED : 0) | (decision.restricted ? RESTRICTED : 0);
+	}
+
+	/**
+	 * The privileges decided so far
+	 */
+	private static final class Decision {
+		long allowed;
+		long denied;
+		boolean restricted;
+
+		boolean isDecided(long requested) {
+			return ((allowed | denied) & requested) == requested;
+		}
+	}
+
+	/**
+	 * Applies the entries of the given principals from the node up to the root, until all of the
+	 * requested privileges are decided
+	 */
+	private void evaluate(Session session, Set<String> principalNames, String absPath, long requested, Decision decision) throws RepositoryException {
+		String path = absPath;
+		while (true) {
+			Entry[] entries = getEntries(session, path);
+			for (int i = 0; i < entries.length; i++) {
+				Entry entry = entries[i];
+				if (principalNames.contains(entry.principalName)) {
+					decision.restricted |= entry.restricted;
+					long undecided = entry.privileges & ~(decision.allowed | decision.denied);
+					if (entry.allow) {
+						if (!entry.restricted) decision.allowed |= undecided;
+					} else {
+						decision.denied |= undecided;
+					}
+				}
+			}
+			if (decision.isDecided(requested) || "/".equals(path)) {
+				return;
+			}
+			int idx = path.lastIndexOf('/');
+			path = idx == 0 ? "/" : path.substring(0, idx);
+		}
+	}
+
+	/**
+	 * Returns the cached principal set of the given authorizable without touching the repository
+	 */
+	PrincipalSet getCachedPrincipalSet(String principalId) {
+		return principalCache.get(principalId);
+	}
+
+	/**
+	 * The members of a group changed, the effective group sets are evicted
+	 */
+	void membershipChanged() {
+		principalGeneration.incrementAndGet();
+		principalCache.clear();
+	}
+
+	void principalRemoved(String principalId) {
+		principalGeneration.incrementAndGet();
+		principalCache.remove(principalId);
+	}
+
+	void aclChanged(String path) {
+		aclGeneration.incrementAndGet();
+		aclCache.remove(path);
+	}
+
+	void clear() {
+		principalGeneration.incrementAndGet();
+		aclGeneration.incrementAndGet();
+		principalCache.clear();
+		aclCache.clear();
+	}
+
+	BoundedCache<String, PrincipalSet> getPrincipalCache() {
+		return principalCache;
+	}
+
+	BoundedCache<String, Entry[]> getAclCache() {
+		return aclCache;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the name, the group set hash is the sum of these
+	 */
+	static long hash(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.liveSense.misc.jcrWrapper.GenericValue;
+
+/**
+ * Selected properties of many principals, stored by column: one array of values per
+ * property name, indexed by the row of the principal. A value is null when the principal
+ * does not have the property.
+ *
+ * @see SecurityManagerService#getPrincipalPropertyTable(javax.jcr.Session, java.util.Collection, java.util.Collection)
+ */
+public class PrincipalPropertyTable implements Serializable {
+
+	private final String[] propertyNames;
+	private String[] principals;
+	private GenericValue[][] columns;
+	private int rows;
+	private final List<String> missing = new ArrayList<String>();
+
+	PrincipalPropertyTable(String[] propertyNames, int capacity) {
+		this.propertyNames = propertyNames;
+		this.principals = new String[capacity];
+		this.columns = new GenericValue[propertyNames.length][capacity];
+	}
+
+	/**
+	 * Adds a row and returns its index
+	 */
+	int addRow(String principal) {
+		principals[rows] = principal;
+		return rows++;
+	}
+
+	void set(int row, int column, GenericValue value) {
+		columns[column][row] = value;
+	}
+
+	void addMissing(String principal) {
+		missing.add(principal);
+	}
+
+	/**
+	 * Drops the unused capacity
+	 */
+	void trim() {
+		if (rows < principals.length) {
+			principals = Arrays.copyOf(principals, rows);
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = Arrays.copyOf(columns[i], rows);
+			}
+		}
+	}
+
+	/**
+	 * Number of the found principals
+	 */
+	public int size() {
+		return rows;
+	}
+
+	/**
+	 * The found principals in the requested order, the index is the row
+	 */
+	public List<String> getPrincipals() {
+		return Collections.unmodifiableList(Arrays.asList(principals).subList(0, rows));
+	}
+
+	/**
+	 * The requested property names, the index is the column
+	 */
+	public List<String> getPropertyNames() {
+		return Collections.unmodifiableList(Arrays.asList(propertyNames));
+	}
+
+	/**
+	 * The requested principals which do not exist
+	 */
+	public List<String> getMissing() {
+		return Collections.unmodifiableList(missing);
+	}
+
+	public GenericValue getValue(int row, int column) {
+		return columns[column][row];
+	}
+
+	/**
+	 * Returns the values of the property by row, null if the property was not requested
+	 */
+	public List<GenericValue> getColumn(String propertyName) {
+		int column = Arrays.asList(propertyNames).indexOf(propertyName);
+		if (column < 0) {
+			return null;
+		}
+		return Collections.unmodifiableList(Arrays.asList(columns[column]).subList(0, rows));
+	}
+
+	/**
+	 * Returns the existing properties of the principal as a map, null if the principal was not found
+	 */
+	public Map<String, GenericValue> getRow(String principal) {
+		int row = Arrays.asList(principals).subList(0, rows).indexOf(principal);
+		if (row < 0) {
+			return null;
+		}
+		Map<String, GenericValue> ret = new HashMap<String, GenericValue>();
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (columns[i][row] != null) {
+				ret.put(propertyNames[i], columns[i][row]);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return "principals: " + rows + ", properties: " + Arrays.toString(propertyNames) + ", missing: " + missing.size();
+	}
+}
@@ -17,8 +17,7 @@
 
 package org.liveSense.service.securityManager;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 import javax.jcr.RepositoryException;
 import javax.jcr.security.AccessControlException;
 import javax.jcr.security.AccessControlManager;
@@ -31,6 +30,8 @@ import javax.jcr.security.Privilege;
  */
 public class PrivilegeFromSerializable implements Privilege {
 
+	private static final Privilege[] NO_PRIVILEGES = new PrivilegeFromSerializable[0];
+
 	SerializablePrivilege privilege;
 
 
@@ -68,27 +69,23 @@ public class PrivilegeFromSerializable implements Privilege {
 	}
 
 	public Privilege[] getDeclaredAggregatePrivileges() {
-		ArrayList<PrivilegeFromSerializable> ret = new ArrayList<PrivilegeFromSerializable>();
-		Iterator<SerializablePrivilege> iter = privilege.declaredAggregatePrivileges.iterator();
-		while (iter.hasNext()) {
-			ret.add(new PrivilegeFromSerializable(iter.next()));
-		}
-		PrivilegeFromSerializable[] retArr = new PrivilegeFromSerializable[ret.size()];
-		System.arraycopy(ret.toArray(), 0, retArr, 0, ret.size());
-
-		return retArr;
+		return fromSerializableList(privilege.readDeclaredAggregatePrivileges());
 	}
 
 	public Privilege[] getAggregatePrivileges() {
-		ArrayList<PrivilegeFromSerializable> ret = new ArrayList<PrivilegeFromSerializable>();
-		Iterator<SerializablePrivilege> iter = privilege.aggregatePrivileges.iterator();
-		while (iter.hasNext()) {
-			ret.add(new PrivilegeFromSerializable(iter.next()));
-		}
-		PrivilegeFromSerializable[] retArr = new PrivilegeFromSerializable[ret.size()];
-		System.arraycopy(ret.toArray(), 0, retArr, 0, ret.size());
+		return fromSerializableList(privilege.readAggregatePrivileges());
+	}
 
-		return retArr;
+	private static Privilege[] fromSerializableList(List<SerializablePrivilege> privileges) {
+		int size = privileges.size();
+		if (size == 0) {
+			return NO_PRIVILEGES;
+		}
+		Privilege[] ret = new PrivilegeFromSerializable[size];
+		for (int i = 0; i < size; i++) {
+			ret[i] = new PrivilegeFromSerializable(privileges.get(i));
+		}
+		return ret;
 	}
 
 }
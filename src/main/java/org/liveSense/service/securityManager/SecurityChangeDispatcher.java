@@ -0,0 +1,394 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the security changes to the registered {@link SecurityChangeListener}s.
+ *
+ * This is a bounded, lossy queue: the changes are stored in a preallocated ring buffer and
+ * consumed by one dispatcher thread. The producers (the JCR observation listeners) are serialized
+ * by a lock, which is uncontended as long as the repository delivers the events on one thread.
+ * When the ring is full the producer waits at most {@link #PUBLISH_TIMEOUT_NANOS} for the
+ * consumer (a listener may block the dispatcher thread), then the change is dropped, counted,
+ * and the listeners are notified by {@link SecurityChangeListener#changesDropped()} so they can
+ * discard their cached data. The observation thread of the repository is never blocked for
+ * longer. Only the notification listeners are fed from here, nothing that must not be lost.
+ *
+ * The consumer parks without timeout when the ring is empty, the producer of the first change
+ * written into the empty ring unparks it.
+ *
+ * The producer stores the event path and the range of the ID in it, the ID string
+ * is only created on the dispatcher thread.
+ *
+ * The changes of the member shards of the large groups (see {@link MemberShards}) are
+ * dispatched as the membership change of their group.
+ *
+ * In a Jackrabbit cluster the changes made on other cluster nodes arrive as external
+ * events. They are dispatched to all listeners, so the caches are invalidated on every
+ * cluster node. The job generation, which must not lose changes and has to run only once,
+ * on the cluster node where the change happened, is not done here (see
+ * {@link UserResourceChangeListener}), it uses {@link #deliver(SecurityChangeListener, Kind, String)}
+ * on the observation thread. For the external events
+ * the replication lag (dispatch time - event time) is measured. The lag contains the
+ * clock offset of the cluster nodes, it is kept signed and the minimum is tracked, see
+ * {@link SecurityChangeMetricsMBean}.
+ */
+final class SecurityChangeDispatcher implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(SecurityChangeDispatcher.class);
+
+	static final int DEFAULT_CAPACITY = 4096;
+	/** Wait of a producer between the checks of a full ring */
+	private static final long PRODUCER_PARK_NANOS = 100000L;
+	/** Maximum time a producer waits for a free slot before dropping the change */
+	static final long PUBLISH_TIMEOUT_NANOS = 50000000L;
+	/** Maximum time start() waits for the consumer thread of the previous run */
+	private static final long RESTART_TIMEOUT_MILLIS = 5000L;
+
+	enum Kind {
+		USER_ADDED, USER_REMOVED, GROUP_ADDED, GROUP_REMOVED, MEMBERSHIP_CHANGED, ACL_CHANGED
+	}
+
+	private static final class Slot {
+		Kind kind;
+		String path;
+		int idStart;
+		int idEnd;
+		boolean external;
+		long date;
+	}
+
+	private static final SecurityChangeListener[] NO_LISTENERS = new SecurityChangeListener[0];
+
+	private final Slot[] slots;
+	private final int mask;
+
+	/** Serializes the producers */
+	private final Object producerLock = new Object();
+	/** Next sequence to write, guarded by producerLock */
+	private long producerSequence = 0;
+	/** Sequence up to the slots are published (exclusive) */
+	private final AtomicLong published = new AtomicLong(0);
+	/** Sequence up to the slots are consumed (exclusive) */
+	private final AtomicLong consumed = new AtomicLong(0);
+
+	private final AtomicLong dispatchedCount = new AtomicLong(0);
+	private final AtomicLong producerWaitCount = new AtomicLong(0);
+	private final AtomicLong droppedCount = new AtomicLong(0);
+
+	private final AtomicLong externalCount = new AtomicLong(0);
+	private final AtomicLong externalLagTotal = new AtomicLong(0);
+	private volatile long lastExternalLag = 0;
+	private volatile long minExternalLag = Long.MAX_VALUE;
+	private volatile long maxExternalLag = Long.MIN_VALUE;
+
+	private volatile SecurityChangeListener[] listeners = NO_LISTENERS;
+	private volatile boolean running = false;
+	private volatile Thread consumerThread;
+
+	SecurityChangeDispatcher() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	SecurityChangeDispatcher(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * Add listener called for the local and the external (cluster) changes
+	 */
+	synchronized void addListener(SecurityChangeListener listener) {
+		listeners = add(listeners, listener);
+	}
+
+	synchronized void removeListener(SecurityChangeListener listener) {
+		listeners = remove(listeners, listener);
+	}
+
+	private static SecurityChangeListener[] add(SecurityChangeListener[] act, SecurityChangeListener listener) {
+		SecurityChangeListener[] ret = new SecurityChangeListener[act.length + 1];
+		System.arraycopy(act, 0, ret, 0, act.length);
+		ret[act.length] = listener;
+		return ret;
+	}
+
+	private static SecurityChangeListener[] remove(SecurityChangeListener[] act, SecurityChangeListener listener) {
+		for (int i = 0; i < act.length; i++) {
+			if (act[i] == listener) {
+				SecurityChangeListener[] ret = new SecurityChangeListener[act.length - 1];
+				System.arraycopy(act, 0, ret, 0, i);
+				System.arraycopy(act, i + 1, ret, i, act.length - i - 1);
+				return ret;
+			}
+		}
+		return act;
+	}
+
+	/**
+	 * Starts the consumer thread. If the consumer thread of the previous run is still
+	 * dispatching (blocked in a listener), waits for it, and refuses to start a second consumer.
+	 */
+	synchronized void start() {
+		if (running) return;
+		Thread previous = consumerThread;
+		if (previous != null) {
+			try {
+				previous.join(RESTART_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (previous.isAlive()) {
+				throw new IllegalStateException("The previous security change dispatcher thread has not stopped yet");
+			}
+		}
+		running = true;
+		Thread thread = new Thread(this, "liveSense security change dispatcher");
+		thread.setDaemon(true);
+		consumerThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops the consumer thread. The thread is kept referenced until it exited, so a
+	 * following {@link #start()} can wait for it.
+	 */
+	synchronized void stop() {
+		running = false;
+		Thread thread = consumerThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!thread.isAlive()) {
+				consumerThread = null;
+			} else {
+				log.warn("Security change dispatcher thread is still running, a listener is blocking it");
+			}
+		}
+	}
+
+	/**
+	 * Publish a change.
+	 *
+	 * @return false if the dispatcher is not running or the ring is full and the change is discarded
+	 */
+	boolean publish(Kind kind, String id) {
+		return publish(kind, id, 0, id.length(), false, 0);
+	}
+
+	/**
+	 * Publish a change where the ID is the [idStart, idEnd) range of the path.
+	 *
+	 * @param The kind of the change
+	 * @param The path of the event
+	 * @param Start index of the ID in the path
+	 * @param End index of the ID in the path
+	 * @param The change is made on an other cluster node
+	 * @param The date of the event in milliseconds, used for the replication lag of the external events
+	 * @return false if the dispatcher is not running or the ring is full and the change is discarded
+	 */
+	boolean publish(Kind kind, String path, int idStart, int idEnd, boolean external, long date) {
+		synchronized (producerLock) {
+			long seq = producerSequence;
+			if (seq - consumed.get() >= slots.length) {
+				producerWaitCount.incrementAndGet();
+				long deadline = System.nanoTime() + PUBLISH_TIMEOUT_NANOS;
+				while (seq - consumed.get() >= slots.length) {
+					if (!running) return false;
+					if (System.nanoTime() - deadline >= 0) {
+						droppedCount.incrementAndGet();
+						return false;
+					}
+					LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+				}
+			}
+			Slot slot = slots[(int) (seq & mask)];
+			slot.kind = kind;
+			slot.path = path;
+			slot.idStart = idStart;
+			slot.idEnd = idEnd;
+			slot.external = external;
+			slot.date = date;
+			producerSequence = seq + 1;
+			// Volatile write before the read of consumed, pairs with the consumer's write of
+			// consumed before its read of published: one of them sees the other
+			published.set(seq + 1);
+			if (consumed.get() == seq) {
+				// First change written into the empty ring, the consumer may be parked
+				Thread thread = consumerThread;
+				if (thread != null) {
+					LockSupport.unpark(thread);
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		long next = consumed.get();
+		long notifiedDrops = droppedCount.get();
+		while (running) {
+			long drops = droppedCount.get();
+			if (drops != notifiedDrops) {
+				notifiedDrops = drops;
+				log.warn("Security change dispatcher dropped changes, total: " + drops);
+				dispatchDropped(listeners);
+			}
+			long available = published.get();
+			if (next == available) {
+				// Unparked by the producer of the next change or by stop(), a spurious wake up just loops
+				LockSupport.park(this);
+				continue;
+			}
+			while (next < available) {
+				Slot slot = slots[(int) (next & mask)];
+				String path = slot.path;
+				String id = slot.idStart == 0 && slot.idEnd == path.length() ? path : path.substring(slot.idStart, slot.idEnd);
+				if (slot.external) {
+					recordExternal(slot.date);
+				}
+				dispatch(listeners, slot.kind, id);
+				dispatchedCount.incrementAndGet();
+				slot.path = null;
+				next++;
+				consumed.set(next);
+			}
+		}
+	}
+
+	private void recordExternal(long date) {
+		// Only called from the dispatcher thread
+		long lag = System.currentTimeMillis() - date;
+		externalLagTotal.addAndGet(lag);
+		lastExternalLag = lag;
+		if (lag < minExternalLag) {
+			minExternalLag = lag;
+		}
+		if (lag > maxExternalLag) {
+			maxExternalLag = lag;
+		}
+		externalCount.incrementAndGet();
+	}
+
+	private void dispatchDropped(SecurityChangeListener[] act) {
+		for (int i = 0; i < act.length; i++) {
+			try {
+				act[i].changesDropped();
+			} catch (Throwable e) {
+				log.error("Security change listener failed: " + act[i], e);
+			}
+		}
+	}
+
+	private void dispatch(SecurityChangeListener[] act, Kind kind, String id) {
+		for (int i = 0; i < act.length; i++) {
+			try {
+				deliver(act[i], kind, id);
+			} catch (Throwable e) {
+				log.error("Security change listener failed: " + act[i], e);
+			}
+		}
+	}
+
+	/**
+	 * Calls the listener method of the change. The member shards are hidden, their changes
+	 * are delivered as the membership change of their group.
+	 */
+	static void deliver(SecurityChangeListener listener, Kind kind, String id) {
+		if (kind != Kind.ACL_CHANGED && kind != Kind.USER_ADDED && kind != Kind.USER_REMOVED && MemberShards.hasShardName(id)) {
+			kind = Kind.MEMBERSHIP_CHANGED;
+			id = MemberShards.getShardedGroupId(id);
+		}
+		switch (kind) {
+		case USER_ADDED:
+			listener.userAdded(id);
+			break;
+		case USER_REMOVED:
+			listener.userRemoved(id);
+			break;
+		case GROUP_ADDED:
+			listener.groupAdded(id);
+			break;
+		case GROUP_REMOVED:
+			listener.groupRemoved(id);
+			break;
+		case MEMBERSHIP_CHANGED:
+			listener.membershipChanged(id);
+			break;
+		case ACL_CHANGED:
+			listener.aclChanged(id);
+			break;
+		}
+	}
+
+	long getDispatchedCount() {
+		return dispatchedCount.get();
+	}
+
+	long getProducerWaitCount() {
+		return producerWaitCount.get();
+	}
+
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	long getBacklog() {
+		return published.get() - consumed.get();
+	}
+
+	long getExternalCount() {
+		return externalCount.get();
+	}
+
+	long getLastReplicationLag() {
+		return lastExternalLag;
+	}
+
+	long getMinReplicationLag() {
+		return externalCount.get() == 0 ? 0 : minExternalLag;
+	}
+
+	long getMaxReplicationLag() {
+		return externalCount.get() == 0 ? 0 : maxExternalLag;
+	}
+
+	long getAverageReplicationLag() {
+		long count = externalCount.get();
+		return count == 0 ? 0 : externalLagTotal.get() / count;
+	}
+
+	long getAverageReplicationDelay() {
+		long count = externalCount.get();
+		return count == 0 ? 0 : externalLagTotal.get() / count - minExternalLag;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+/**
+ * In-process listener for security related repository changes.
+ *
+ * Register an implementation as OSGi service (whiteboard pattern), the
+ * {@link UserResourceChangeListener} calls it for the detected changes.
+ *
+ * Threading: every method, including {@link #changesDropped()}, is called from one
+ * dispatcher thread, in the order of the changes, never concurrently. The dispatcher thread
+ * is shared by all listeners, so the implementations have to return fast and must not block;
+ * an exception thrown by a listener is logged and does not stop the dispatching.
+ *
+ * Delivery: the notifications are best effort. The changes are queued in a bounded buffer;
+ * when the listeners fall behind and the buffer is full, the new changes are dropped and
+ * {@link #changesDropped()} is called (once for the drops since its previous call) before
+ * the changes published after the drop are delivered. The job events of {@link UserResourceChangeListener} are not affected
+ * by the drops.
+ *
+ * In a Jackrabbit cluster the changes made on the other cluster nodes are reported too,
+ * so a cache can evict the changed entries on every cluster node. The member shards of the
+ * large groups are not reported, their changes are reported as the membership change of
+ * their group.
+ *
+ * @author Robert Csakany (robson@semmi.se)
+ */
+public interface SecurityChangeListener {
+
+	/**
+	 * User has been added
+	 *
+	 * @param userId the ID of the user
+	 */
+	void userAdded(String userId);
+
+	/**
+	 * User has been removed
+	 *
+	 * @param userId the ID of the user
+	 */
+	void userRemoved(String userId);
+
+	/**
+	 * Group has been added
+	 *
+	 * @param groupId the ID of the group
+	 */
+	void groupAdded(String groupId);
+
+	/**
+	 * Group has been removed
+	 *
+	 * @param groupId the ID of the group
+	 */
+	void groupRemoved(String groupId);
+
+	/**
+	 * The declared members of the group has been changed
+	 *
+	 * @param groupId the ID of the group
+	 */
+	void membershipChanged(String groupId);
+
+	/**
+	 * The access control list of the given path has been changed
+	 *
+	 * @param path the path of the node the ACL belongs to
+	 */
+	void aclChanged(String path);
+
+	/**
+	 * Some changes could not be dispatched because the listeners did not keep up with them.
+	 * Called from the dispatcher thread after the drop, before the next delivered change.
+	 * The listener cannot know which users, groups or ACLs were changed, so it has to
+	 * discard all data derived from the security state (e.g. clear its caches) and must not
+	 * rely on having seen every change before this call.
+	 */
+	void changesDropped();
+
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+/**
+ * Counters of the security change dispatching and the replication lag of the changes
+ * received from the other cluster nodes. Registered as OSGi service and as the MBean
+ * <code>org.liveSense:type=SecurityManager,name=changes,instance=&lt;component.id&gt;</code>
+ * by the {@link UserResourceChangeListener}.
+ *
+ * The replication lag is the dispatch time on this cluster node minus the event time
+ * on the originating cluster node, so it contains the clock offset of the two nodes
+ * (and can be negative). The minimum lag approximates that offset plus the smallest
+ * possible delay, the lag minus the minimum lag is the delay corrected for the offset
+ * as long as the changes come from one other cluster node.
+ */
+public interface SecurityChangeMetricsMBean {
+
+	/**
+	 * Number of the changes dispatched to the listeners
+	 */
+	long getDispatchedCount();
+
+	/**
+	 * Number of the changes dropped because the listeners did not keep up
+	 */
+	long getDroppedCount();
+
+	/**
+	 * Number of the times the observation thread had to wait for a free slot
+	 */
+	long getProducerWaitCount();
+
+	/**
+	 * Number of the published changes not dispatched yet
+	 */
+	long getBacklog();
+
+	/**
+	 * Number of the changes received from the other cluster nodes
+	 */
+	long getExternalChangeCount();
+
+	/**
+	 * Replication lag of the last change received from an other cluster node in milliseconds
+	 */
+	long getLastReplicationLag();
+
+	/**
+	 * Minimum replication lag of the changes received from the other cluster nodes in milliseconds
+	 */
+	long getMinReplicationLag();
+
+	/**
+	 * Maximum replication lag of the changes received from the other cluster nodes in milliseconds
+	 */
+	long getMaxReplicationLag();
+
+	/**
+	 * Average replication lag of the changes received from the other cluster nodes in milliseconds
+	 */
+	long getAverageReplicationLag();
+
+	/**
+	 * Average replication lag minus the minimum lag in milliseconds, the clock offset of the
+	 * cluster nodes removed
+	 */
+	long getAverageReplicationDelay();
+}
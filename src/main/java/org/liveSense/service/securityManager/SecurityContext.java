@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.liveSense.misc.jcrWrapper.GenericValue;
+import org.liveSense.service.securityManager.exceptions.GroupNotExistsException;
+import org.liveSense.service.securityManager.exceptions.InternalException;
+import org.liveSense.service.securityManager.exceptions.PrincipalIsNotGroupException;
+import org.liveSense.service.securityManager.exceptions.PrincipalIsNotUserException;
+import org.liveSense.service.securityManager.exceptions.PrincipalNotExistsException;
+import org.liveSense.service.securityManager.exceptions.UserNotExistsException;
+
+/**
+ * Request scoped view of the {@link SecurityManagerService} bound to a session.
+ * The results of the lookups and privilege checks are memoized for the lifetime
+ * of the context, so repeated calls in the same request do not touch the repository.
+ *
+ * The context is not thread safe and does not see the changes made after the first
+ * lookup, it should be used by one request and simply dropped at the end of it.
+ * The returned lists and maps are shared between the calls and must not be modified.
+ *
+ * @see SecurityManagerService#getSecurityContext(Session)
+ */
+public interface SecurityContext {
+
+	/**
+	 * Returns the session of the context
+	 */
+	Session getSession();
+
+	/**
+	 * @see SecurityManagerService#getAuthorizableByName(Session, String)
+	 */
+	Authorizable getAuthorizableByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * @see SecurityManagerService#getUserByName(Session, String)
+	 */
+	User getUserByName(String userName) throws UserNotExistsException, InternalException, PrincipalIsNotUserException;
+
+	/**
+	 * @see SecurityManagerService#getGroupByName(Session, String)
+	 */
+	Group getGroupByName(String groupName) throws GroupNotExistsException, InternalException, PrincipalIsNotGroupException;
+
+	/**
+	 * @see SecurityManagerService#getDeclaredMemberOfByName(Session, String)
+	 */
+	List<Group> getDeclaredMemberOfByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * @see SecurityManagerService#getEffectiveMemberOfByName(Session, String)
+	 */
+	List<Group> getEffectiveMemberOfByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * @see SecurityManagerService#getPrincipalPropertiesByName(Session, String)
+	 */
+	Map<String, GenericValue> getPrincipalPropertiesByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * @see SecurityManagerService#canAddChildren(Session, String)
+	 */
+	boolean canAddChildren(String absPath);
+
+	/**
+	 * @see SecurityManagerService#canDeleteChildren(Session, String)
+	 */
+	boolean canDeleteChildren(String absPath);
+
+	/**
+	 * @see SecurityManagerService#canDelete(Session, String)
+	 */
+	boolean canDelete(String absPath);
+
+	/**
+	 * @see SecurityManagerService#canModifyProperties(Session, String)
+	 */
+	boolean canModifyProperties(String absPath);
+
+	/**
+	 * @see SecurityManagerService#canReadAccessControl(Session, String)
+	 */
+	boolean canReadAccessControl(String absPath);
+
+	/**
+	 * @see SecurityManagerService#canModifyAccessControl(Session, String)
+	 */
+	boolean canModifyAccessControl(String absPath);
+
+	/**
+	 * Drops the memoized results, the next calls go to the repository again
+	 */
+	void clear();
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import javax.jcr.observation.Event;
+
+/**
+ * Classifies the observation events of the authorizable and ACL nodes by their path.
+ *
+ * The path is scanned in place, the result is the kind of the change and the
+ * [idStart, idEnd) range of the authorizable ID (or the ACL's node path) in the path,
+ * so classification does not allocate. One instance is used by one observation thread,
+ * the result fields are overwritten by every {@link #classify(int, String)} call.
+ *
+ * Recognized events:
+ * <ul>
+ * <li>PROPERTY_ADDED of jcr:primaryType on a rep:User / rep:Group node: authorizable created</li>
+ * <li>NODE_REMOVED below rep:users / rep:groups: authorizable removed</li>
+ * <li>any property event of rep:members on the group or in its rep:membersList tree: membership changed</li>
+ * <li>any event below a rep:policy node: ACL of the policy's parent changed</li>
+ * </ul>
+ */
+final class SecurityEventClassifier {
+
+	static final String AUTHORIZABLES_PATH = "/rep:security/rep:authorizables";
+	static final String USERS_PATH = AUTHORIZABLES_PATH + "/rep:users";
+	static final String GROUPS_PATH = AUTHORIZABLES_PATH + "/rep:groups";
+
+	private static final String POLICY_SEGMENT = "/rep:policy/";
+	private static final String MEMBERS_LIST_SEGMENT = "/rep:membersList/";
+	private static final String MEMBERS_PROPERTY = "/rep:members";
+	private static final String PRIMARY_TYPE_PROPERTY = "/jcr:primaryType";
+
+	SecurityChangeDispatcher.Kind kind;
+	int idStart;
+	int idEnd;
+
+	/**
+	 * Classify the event.
+	 *
+	 * @param JCR event type
+	 * @param Path of the event
+	 * @return true if the event is a security change, the result is in {@link #kind}, {@link #idStart} and {@link #idEnd}
+	 */
+	boolean classify(int eventType, String path) {
+		kind = null;
+
+		int policyIdx = path.lastIndexOf(POLICY_SEGMENT);
+		if (policyIdx >= 0) {
+			kind = SecurityChangeDispatcher.Kind.ACL_CHANGED;
+			idStart = 0;
+			// The root node's ACL is stored in /rep:policy
+			idEnd = policyIdx == 0 ? 1 : policyIdx;
+			return true;
+		}
+
+		boolean group;
+		if (isBelow(path, GROUPS_PATH)) {
+			group = true;
+		} else if (isBelow(path, USERS_PATH)) {
+			group = false;
+		} else {
+			return false;
+		}
+
+		int nameStart = path.lastIndexOf('/') + 1;
+
+		if (eventType == Event.NODE_REMOVED) {
+			kind = group ? SecurityChangeDispatcher.Kind.GROUP_REMOVED : SecurityChangeDispatcher.Kind.USER_REMOVED;
+			idStart = nameStart;
+			idEnd = path.length();
+			return true;
+		}
+
+		int membersListIdx = path.indexOf(MEMBERS_LIST_SEGMENT);
+		if (group && path.endsWith(MEMBERS_PROPERTY)) {
+			// The members can be stored in the group node or in rep:membersList tree under the group
+			kind = SecurityChangeDispatcher.Kind.MEMBERSHIP_CHANGED;
+			setParentSegment(path, membersListIdx >= 0 ? membersListIdx : nameStart - 1);
+			return true;
+		}
+
+		if (eventType == Event.PROPERTY_ADDED && membersListIdx < 0 && path.endsWith(PRIMARY_TYPE_PROPERTY)) {
+			// If jcr:primaryType property added, new authorizable added
+			kind = group ? SecurityChangeDispatcher.Kind.GROUP_ADDED : SecurityChangeDispatcher.Kind.USER_ADDED;
+			setParentSegment(path, nameStart - 1);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Set the id range to the segment ending at the given slash position
+	 */
+	private void setParentSegment(String path, int slashIdx) {
+		idStart = path.lastIndexOf('/', slashIdx - 1) + 1;
+		idEnd = slashIdx;
+	}
+
+	private static boolean isBelow(String path, String parent) {
+		return path.length() > parent.length() && path.charAt(parent.length()) == '/' && path.startsWith(parent);
+	}
+}
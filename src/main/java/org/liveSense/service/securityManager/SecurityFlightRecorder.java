@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder events of the security manager operations.
+ *
+ * The event type (org.liveSense.securityManager.Operation with the operation, principal,
+ * path and cache fields, plus the duration) is defined through jdk.jfr.EventFactory by
+ * reflection, so the bundle still runs on the JREs without JFR, where no event is emitted.
+ * A recorder listener keeps the enabled state of the event type in a volatile flag: when no
+ * recording has the event enabled {@link #begin()} is one volatile read and returns null, and
+ * {@link #commit(Object, String, String, String, String)} returns immediately.
+ *
+ * Usage:
+ * <pre>
+ * Object event = SecurityFlightRecorder.begin();
+ * try {
+ *     ...
+ * } finally {
+ *     SecurityFlightRecorder.commit(event, "getUserByName", userName, null, null);
+ * }
+ * </pre>
+ */
+final class SecurityFlightRecorder {
+
+	private static final Logger log = LoggerFactory.getLogger(SecurityFlightRecorder.class);
+
+	static final String EVENT_NAME = "org.liveSense.securityManager.Operation";
+
+	static final String CACHE_HIT = "hit";
+	static final String CACHE_MISS = "miss";
+	static final String CACHE_BYPASS = "bypass";
+
+	private static volatile boolean enabled = false;
+
+	private static Object eventFactory;
+	private static Object eventType;
+	private static Method newEventMethod;
+	private static Method beginMethod;
+	private static Method setMethod;
+	private static Method commitMethod;
+	private static Method isEnabledMethod;
+
+	static {
+		try {
+			init();
+		} catch (Exception ex) {
+			eventFactory = null;
+			log.debug("Flight recorder events are not available: " + ex);
+		} catch (LinkageError ex) {
+			eventFactory = null;
+			log.debug("Flight recorder events are not available: " + ex);
+		}
+	}
+
+	private SecurityFlightRecorder() {
+	}
+
+	private static void init() throws Exception {
+		// jdk.* is not visible from the bundle class loader
+		ClassLoader loader = ClassLoader.getSystemClassLoader();
+		Class<?> annotationElementClass = loader.loadClass("jdk.jfr.AnnotationElement");
+		Class<?> valueDescriptorClass = loader.loadClass("jdk.jfr.ValueDescriptor");
+		Class<?> eventFactoryClass = loader.loadClass("jdk.jfr.EventFactory");
+		Class<?> eventTypeClass = loader.loadClass("jdk.jfr.EventType");
+		Class<?> eventClass = loader.loadClass("jdk.jfr.Event");
+		Class<?> flightRecorderClass = loader.loadClass("jdk.jfr.FlightRecorder");
+		Class<?> listenerClass = loader.loadClass("jdk.jfr.FlightRecorderListener");
+
+		Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(annotationElement.newInstance(loader.loadClass("jdk.jfr.Name"), EVENT_NAME));
+		annotations.add(annotationElement.newInstance(loader.loadClass("jdk.jfr.Label"), "Security Manager Operation"));
+		annotations.add(annotationElement.newInstance(loader.loadClass("jdk.jfr.Category"), new String[]{"liveSense", "Security Manager"}));
+
+		// The order defines the field indexes used in commit
+		Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+		List<Object> fields = new ArrayList<Object>();
+		fields.add(valueDescriptor.newInstance(String.class, "operation"));
+		fields.add(valueDescriptor.newInstance(String.class, "principal"));
+		fields.add(valueDescriptor.newInstance(String.class, "path"));
+		fields.add(valueDescriptor.newInstance(String.class, "cache"));
+
+		eventFactory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+		eventType = eventFactoryClass.getMethod("getEventType").invoke(eventFactory);
+		newEventMethod = eventFactoryClass.getMethod("newEvent");
+		isEnabledMethod = eventTypeClass.getMethod("isEnabled");
+		beginMethod = eventClass.getMethod("begin");
+		setMethod = eventClass.getMethod("set", int.class, Object.class);
+		commitMethod = eventClass.getMethod("commit");
+
+		Object listener = Proxy.newProxyInstance(loader, new Class<?>[]{listenerClass}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("equals".equals(method.getName())) {
+					return proxy == args[0];
+				} else if ("hashCode".equals(method.getName())) {
+					return System.identityHashCode(proxy);
+				} else if ("toString".equals(method.getName())) {
+					return "SecurityFlightRecorder listener";
+				}
+				// recorderInitialized, recordingStateChanged
+				updateEnabled();
+				return null;
+			}
+		});
+		flightRecorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+		updateEnabled();
+	}
+
+	private static void updateEnabled() {
+		try {
+			enabled = (Boolean) isEnabledMethod.invoke(eventType);
+		} catch (Exception ex) {
+			enabled = false;
+		}
+	}
+
+	/**
+	 * Returns true if a running recording has the events enabled
+	 */
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts the timing of an event
+	 *
+	 * @return The event or null if the events are not recorded
+	 */
+	static Object begin() {
+		if (!enabled) {
+			return null;
+		}
+		try {
+			Object event = newEventMethod.invoke(eventFactory);
+			beginMethod.invoke(event);
+			return event;
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Commits the event returned by {@link #begin()}, does nothing if the event is null
+	 *
+	 * @param The event
+	 * @param The operation name
+	 * @param The principal name or null
+	 * @param The path or null
+	 * @param The cache result ({@link #CACHE_HIT}, {@link #CACHE_MISS}, {@link #CACHE_BYPASS}) or null
+	 */
+	static void commit(Object event, String operation, String principal, String path, String cache) {
+		if (event == null) {
+			return;
+		}
+		try {
+			setMethod.invoke(event, 0, operation);
+			setMethod.invoke(event, 1, principal);
+			setMethod.invoke(event, 2, path);
+			setMethod.invoke(event, 3, cache);
+			commitMethod.invoke(event);
+		} catch (Exception ex) {
+			log.debug("Could not commit flight recorder event", ex);
+		}
+	}
+}
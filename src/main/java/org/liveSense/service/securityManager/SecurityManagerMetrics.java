@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.Map;
+
+/**
+ * Per operation call counts, error counts and latency histograms of the
+ * {@link SecurityManagerService}. The service is registered only when the
+ * instrumentation is enabled (instrumentation.enabled).
+ */
+public interface SecurityManagerMetrics extends SecurityManagerMetricsMBean {
+
+	/**
+	 * Returns the number of the errors of the operation by exception class name
+	 */
+	Map<String, Long> getErrorCounts(String operation);
+}
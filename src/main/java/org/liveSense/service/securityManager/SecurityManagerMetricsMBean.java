@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+/**
+ * JMX view of the {@link SecurityManagerMetrics}, registered as
+ * <code>org.liveSense:type=SecurityManager,name=metrics,instance=&lt;component.id&gt;</code>.
+ */
+public interface SecurityManagerMetricsMBean {
+
+	/**
+	 * The names of the instrumented operations, e.g. getUserByName(Session,String)
+	 */
+	String[] getOperationNames();
+
+	/**
+	 * One line per operation with the call and error counts and the p50/p99/p999 latencies
+	 */
+	String[] getSummary();
+
+	/**
+	 * Number of the calls of the operation (including the failed ones)
+	 */
+	long getCallCount(String operation);
+
+	/**
+	 * Number of the calls of the operation ended with an exception
+	 */
+	long getErrorCount(String operation);
+
+	/**
+	 * Latency of the operation at the given percentile in nanoseconds
+	 *
+	 * @param The operation name
+	 * @param The percentile between 0 and 1 (e.g. 0.999)
+	 */
+	long getLatencyPercentile(String operation, double percentile);
+
+	/**
+	 * Average latency of the operation in nanoseconds
+	 */
+	long getAverageLatency(String operation);
+
+	/**
+	 * Clears all of the counters and histograms
+	 */
+	void reset();
+}
@@ -17,9 +17,12 @@
 
 package org.liveSense.service.securityManager;
 
+import java.nio.channels.WritableByteChannel;
 import java.security.Principal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -36,6 +39,7 @@ import org.liveSense.service.securityManager.exceptions.InternalException;
 import org.liveSense.service.securityManager.exceptions.PrincipalIsNotGroupException;
 import org.liveSense.service.securityManager.exceptions.PrincipalIsNotUserException;
 import org.liveSense.service.securityManager.exceptions.PrincipalNotExistsException;
+import org.liveSense.service.securityManager.exceptions.SecurityManagerException;
 import org.liveSense.service.securityManager.exceptions.UserAlreadyExistsException;
 import org.liveSense.service.securityManager.exceptions.UserNotExistsException;
 
@@ -46,7 +50,8 @@ import org.liveSense.service.securityManager.exceptions.UserNotExistsException;
 public interface SecurityManagerService {
 
 	/**
-	 * Add new group with the given name
+	 * Add new group with the given name. The names containing ~shard- are reserved for the
+	 * shards of the large groups, InternalException is thrown for them.
 	 *
 	 * @param Name of group
 	 * @param The peoperties added to user (Converted to Value) - Multiple values is enabled
@@ -261,6 +266,50 @@ public interface SecurityManagerService {
 	 */
 	Authorizable getAuthorizableByName(Session session, String principal) throws PrincipalNotExistsException, InternalException;
 
+	/**
+	 * Get many JCR Authorizable objects with one UserManager. The names which do not exist
+	 * are returned in the result, no exception is thrown for them. Large batches are resolved
+	 * with queries instead of one lookup per name, the names are matched against the authorizable
+	 * IDs (as by {@link #getAuthorizableByName(Session, String)}) at every batch size.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The Principal names (Group or User)
+	 * @return The found Authorizables and the missing names
+	 * @throws InternalException
+	 */
+	AuthorizableLookupResult getAuthorizablesByNames(Session session, Collection<String> principals) throws InternalException;
+
+	/**
+	 * Find a JCR Authorizable object. Unlike {@link #getAuthorizableByName(Session, String)}
+	 * no exception is created when it does not exist.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The Principal name (Group or User)
+	 * @return The Authorizable, null if it does not exist
+	 * @throws InternalException
+	 */
+	Authorizable findAuthorizable(Session session, String principal) throws InternalException;
+
+	/**
+	 * Find a JCR User object.
+	 *
+	 * @param The JCR session of the current user
+	 * @param Name of user
+	 * @return The User, null if it does not exist or the principal is a group
+	 * @throws InternalException
+	 */
+	User findUser(Session session, String userName) throws InternalException;
+
+	/**
+	 * Find a JCR Group object.
+	 *
+	 * @param The JCR session of the current user
+	 * @param Name of group
+	 * @return The Group, null if it does not exist or the principal is a user
+	 * @throws InternalException
+	 */
+	Group findGroup(Session session, String groupName) throws InternalException;
+
 	/**
 	 * Returns the mapping of declared access rights that have been set for the resource at
 	 * the given path.
@@ -418,6 +467,30 @@ public interface SecurityManagerService {
 	 */
 	Map<String, GenericValue> getPrincipalPropertiesByName(Session session, String principal) throws PrincipalNotExistsException, InternalException;
 
+	/**
+	 * Get the given properties of the principal. Only the requested properties are read.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The name of Pricipal
+	 * @param The names of the wanted properties
+	 * @return The map of the existing requested properties of authorizable
+	 * @throws PrincipalNotExistsException
+	 * @throws InternalException
+	 */
+	Map<String, GenericValue> getPrincipalPropertiesByName(Session session, String principal, Collection<String> propertyNames) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * Get the given properties of many principals with one UserManager. The principals which
+	 * do not exist are listed in the result instead of failing the call.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The names of the Principals
+	 * @param The names of the wanted properties
+	 * @return The values by property name and principal
+	 * @throws InternalException
+	 */
+	PrincipalPropertyTable getPrincipalPropertyTable(Session session, Collection<String> principals, Collection<String> propertyNames) throws InternalException;
+
 	/**
 	 * Returns the JCR repository used by this service.
 	 */
@@ -455,11 +528,12 @@ public interface SecurityManagerService {
 	User getUserByName(Session session, String userName) throws UserNotExistsException, InternalException, PrincipalIsNotUserException;
 
 	/**
-	 * Modify the properties of the given principal
+	 * Modify the properties of the given principal. Only the differences are written: a property
+	 * having the same values and the same single/multi-valued kind already is not touched, a null value removes the property, the
+	 * properties not in the map are left as they are. The session is not saved.
 	 *
 	 * @param The JCR session of the current user
-	 * @param Tha name of user
-	 * @param Password
+	 * @param Tha name of Principal
 	 * @param Properties
 	 * @throws UserNotExistsException
 	 * @throws InternalException
@@ -467,6 +541,19 @@ public interface SecurityManagerService {
 	 */
 	void modifyPrincipalPropertiesByName(Session session, String principal, Map<String, GenericValue> properties) throws UserNotExistsException, InternalException, PrincipalIsNotUserException;
 
+	/**
+	 * Modify the properties of many principals with the same diff semantics as
+	 * {@link #modifyPrincipalPropertiesByName(Session, String, Map)}. The session is saved
+	 * after every batch of changed principals and at the end, it is not saved when no
+	 * property was changed.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The properties by the name of Principal
+	 * @return The principals which do not exist, nothing was written for them
+	 * @throws InternalException
+	 */
+	Set<String> modifyPrincipalPropertiesByName(Session session, Map<String, Map<String, GenericValue>> properties) throws InternalException;
+
 
 	/**
 	 * Set the ACL for the given principal
@@ -481,7 +568,9 @@ public interface SecurityManagerService {
 	void setAclByName(Session session, String principal, String path, AccessRights privileges) throws InternalException, PrincipalNotExistsException;
 
 	/**
-	 * Add principal to group
+	 * Add principal to group. When the group has largeGroup.threshold declared members the new
+	 * members are added to its hidden shard groups, which are not listed by the membership methods.
+	 * The session is not saved.
 	 *
 	 * @param The JCR session of the current user
 	 * @param Principal
@@ -506,6 +595,176 @@ public interface SecurityManagerService {
 	 */	
 	boolean removePrincipalFromGroup(Session session, String principal, String group) throws InternalException, PrincipalNotExistsException, PrincipalIsNotGroupException;
 
+	/**
+	 * Set the declared members of the group to exactly the given principals. Only the
+	 * difference to the current members is applied and the session is saved once.
+	 * The principals which do not exist are reported in the result, not added.
+	 *
+	 * @param The JCR session of the current user
+	 * @param Group
+	 * @param The wanted members
+	 * @return The applied changes
+	 * @throws InternalException
+	 * @throws GroupNotExistsException
+	 * @throws PrincipalIsNotGroupException
+	 */
+	MembershipDelta setGroupMembers(Session session, String groupName, Collection<String> members) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException;
+
+	/**
+	 * Add many principals to the group. The group is resolved once, the principals in
+	 * chunks, the session is saved after every chunk. When the save of a chunk fails the
+	 * session is refreshed (its pending changes are discarded) and the chunk is reported as failed.
+	 *
+	 * @param The JCR session of the current user
+	 * @param Group
+	 * @param The principals to add
+	 * @return The outcome per principal
+	 * @throws InternalException
+	 * @throws GroupNotExistsException
+	 * @throws PrincipalIsNotGroupException
+	 */
+	MembershipChangeResult addPrincipalsToGroup(Session session, String groupName, Collection<String> principals) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException;
+
+	/**
+	 * Remove many principals from the group. The group is resolved once, the principals in
+	 * chunks, the session is saved after every chunk. When the save of a chunk fails the
+	 * session is refreshed (its pending changes are discarded) and the chunk is reported as failed.
+	 *
+	 * @param The JCR session of the current user
+	 * @param Group
+	 * @param The principals to remove
+	 * @return The outcome per principal
+	 * @throws InternalException
+	 * @throws GroupNotExistsException
+	 * @throws PrincipalIsNotGroupException
+	 */
+	MembershipChangeResult removePrincipalsFromGroup(Session session, String groupName, Collection<String> principals) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException;
+
+	/**
+	 * Runs the callback with a pooled administrative session. The objects bound to the session
+	 * (Authorizable, User, Group) can be used only inside the callback, see
+	 * {@link AdministrativeSessionCallback}.
+	 *
+	 * @param The work to do with the session
+	 * @return The result of the callback
+	 * @throws SecurityManagerException The exception thrown by the callback
+	 * @throws InternalException
+	 */
+	<T> T doWithAdministrativeSession(AdministrativeSessionCallback<T> callback) throws SecurityManagerException, InternalException;
+
+	/**
+	 * Get the IDs of the declared groups where the given principal is member using a pooled administrative session.
+	 *
+	 * @param The name of the Principal
+	 * @return The list of group IDs
+	 * @throws PrincipalNotExistsException
+	 * @throws InternalException
+	 */
+	List<String> getDeclaredMemberOfIdsByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * Get the IDs of the aggregate list of groups where the given principal is member using a pooled administrative session.
+	 *
+	 * @param The name of Principal
+	 * @return The aggregated list of group IDs
+	 * @throws PrincipalNotExistsException
+	 * @throws InternalException
+	 */
+	List<String> getEffectiveMemberOfIdsByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * Get the IDs of the given group's declared members using a pooled administrative session.
+	 *
+	 * @param Name of group
+	 * @return The list of member IDs
+	 * @throws InternalException
+	 * @throws PrincipalIsNotGroupException
+	 * @throws GroupNotExistsException
+	 */
+	List<String> getDeclaredMemberIdsByName(String groupName) throws InternalException, PrincipalIsNotGroupException, GroupNotExistsException;
+
+	/**
+	 * Get the IDs of the given group's aggregate list of members using a pooled administrative session.
+	 *
+	 * @param Name of group
+	 * @return The list of member IDs
+	 * @throws InternalException
+	 * @throws PrincipalIsNotGroupException
+	 * @throws GroupNotExistsException
+	 */
+	List<String> getEffectiveMemberIdsByName(String groupName) throws InternalException, PrincipalIsNotGroupException, GroupNotExistsException;
+
+	/**
+	 * Get the properties of the given principal using a pooled administrative session.
+	 *
+	 * @param The name of Pricipal
+	 * @return The map of setted properties of authorizable
+	 * @throws PrincipalNotExistsException
+	 * @throws InternalException
+	 */
+	Map<String, GenericValue> getPrincipalPropertiesByName(String principal) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * Get the given properties of the principal using a pooled administrative session.
+	 *
+	 * @param The name of Pricipal
+	 * @param The names of the wanted properties
+	 * @return The map of the existing requested properties of authorizable
+	 * @throws PrincipalNotExistsException
+	 * @throws InternalException
+	 */
+	Map<String, GenericValue> getPrincipalPropertiesByName(String principal, Collection<String> propertyNames) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * Get the given properties of many principals using a pooled administrative session.
+	 *
+	 * @param The names of the Principals
+	 * @param The names of the wanted properties
+	 * @return The values by property name and principal
+	 * @throws InternalException
+	 */
+	PrincipalPropertyTable getPrincipalPropertyTable(Collection<String> principals, Collection<String> propertyNames) throws InternalException;
+
+	/**
+	 * Get the access rights of the given principal using a pooled administrative session.
+	 *
+	 * @param The Principal name (Group or User)
+	 * @param JCR Path
+	 * @return
+	 * @throws InternalException
+	 */
+	AccessRights getAclByName(String principalId, String absPath) throws InternalException;
+
+	/**
+	 * Returns the metrics of the administrative session pool used by the session-less methods.
+	 */
+	SessionPoolMetrics getSessionPoolMetrics();
+
+	/**
+	 * Checks whether the given principal has been granted all of the privileges
+	 * on the specified path. No session of the principal is created, the evaluation
+	 * uses the cached effective group set of the principal and the cached
+	 * access control entries of the path and its ancestors.
+	 *
+	 * @param The Principal name (Group or User)
+	 * @param The path of the resource to check
+	 * @param The privilege names (e.g. jcr:read)
+	 * @return True if the principal has all the privileges, false otherwise or if the path does not exist
+	 * @throws PrincipalNotExistsException
+	 * @throws InternalException
+	 */
+	boolean hasPrivileges(String principalId, String absPath, String... privileges) throws PrincipalNotExistsException, InternalException;
+
+	/**
+	 * Returns a request scoped context bound to the given session. The context memoizes
+	 * the authorizable lookups, the group sets, the property maps and the privilege decisions,
+	 * it should be used by one request only and dropped at the end of it.
+	 *
+	 * @param The JCR session of the current user
+	 * @return The new security context
+	 */
+	SecurityContext getSecurityContext(Session session);
+
 	/**
 	 * Creates user home in JCR root (/)
 	 *
@@ -529,4 +788,68 @@ public interface SecurityManagerService {
 	 */
 	void createUserHome(Session session, String userName, String parentPath) throws PrincipalIsNotUserException, InternalException, PrincipalNotExistsException;
 
+	/**
+	 * Creates the homes of the given users on the given path. The work is split
+	 * between parallel administrative sessions, the sessions are saved in batches and
+	 * the conflicting saves are retried.
+	 *
+	 * @param The names of the users
+	 * @param parentPath
+	 * @return The number of the created homes, the failures and the throughput
+	 * @throws InternalException
+	 */
+	UserHomeProvisioningResult createUserHomes(Collection<String> userNames, String parentPath) throws InternalException;
+
+	/**
+	 * Returns the path of the user's home in JCR root (/). The home folder layout
+	 * is configurable, it can be flat (/home/abc123) or sharded (/home/~a/~ab/abc123).
+	 * The home does not have to exist.
+	 *
+	 * @param userName
+	 * @return The absolute path of the user's home
+	 */
+	String getUserHomePath(String userName);
+
+	/**
+	 * Returns the path of the user's home on the given path.
+	 * The home does not have to exist.
+	 *
+	 * @param userName
+	 * @param parentPath
+	 * @return The absolute path of the user's home
+	 */
+	String getUserHomePath(String userName, String parentPath);
+
+	/**
+	 * Starts the background migration of the user homes on the given path to the
+	 * configured home folder layout. The homes are moved in chunks, the session is saved
+	 * after every chunk.
+	 *
+	 * @param parentPath
+	 * @throws InternalException
+	 */
+	void migrateUserHomes(String parentPath) throws InternalException;
+
+	/**
+	 * Streams every user and group with its properties and declared group memberships
+	 * to the channel, one JSON object per line. The authorizables are read in pages, so the
+	 * memory used does not depend on the size of the directory.
+	 *
+	 * @param The JCR session of the current user
+	 * @param The channel the lines are written to, it is not closed
+	 * @return The number of exported authorizables
+	 * @throws InternalException
+	 */
+	long exportAuthorizables(Session session, WritableByteChannel channel) throws InternalException;
+
+	/**
+	 * Streams every user and group using a pooled administrative session.
+	 *
+	 * @param The channel the lines are written to, it is not closed
+	 * @return The number of exported authorizables
+	 * @throws InternalException
+	 * @see #exportAuthorizables(Session, WritableByteChannel)
+	 */
+	long exportAuthorizables(WritableByteChannel channel) throws InternalException;
+
 }
@@ -26,35 +26,66 @@ import org.apache.felix.scr.annotations.*;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.Query;
+import org.apache.jackrabbit.api.security.user.QueryBuilder;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
+import org.apache.jackrabbit.util.Text;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.liveSense.core.Configurator;
 import org.liveSense.core.PasswordDigester;
 import org.liveSense.misc.jcrWrapper.GenericValue;
 import org.liveSense.service.securityManager.exceptions.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.PropertyType;
+import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.observation.Event;
 import javax.jcr.security.*;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component(label="%service.name",
 	description="%service.description",
 	immediate=true)
-@Service(value=SecurityManagerService.class)
-public class SecurityManagerServiceImpl implements SecurityManagerService {
+@Service(value=SecurityChangeListener.class)
+public class SecurityManagerServiceImpl implements SecurityManagerService, SecurityChangeListener {
 
 	/**
 	 * default log
@@ -75,6 +106,539 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	Configurator configurator;
 
+	public static final String PROP_USER_HOME_SHARD_DEPTH = "userHome.shardDepth";
+	public static final int DEFAULT_USER_HOME_SHARD_DEPTH = 0;
+
+	/**
+	 * Number of the levels of the user home folders. 0 means flat layout (/home/abc123),
+	 * 2 means /home/~a/~ab/abc123.
+	 */
+	@Property(name=PROP_USER_HOME_SHARD_DEPTH, intValue=DEFAULT_USER_HOME_SHARD_DEPTH, label="%userHome.shardDepth.name", description="%userHome.shardDepth.description")
+	private int userHomeShardDepth = DEFAULT_USER_HOME_SHARD_DEPTH;
+
+	public static final String PROP_USER_HOME_MIGRATION_CHUNK_SIZE = "userHome.migrationChunkSize";
+	public static final int DEFAULT_USER_HOME_MIGRATION_CHUNK_SIZE = 500;
+
+	/**
+	 * Number of user homes moved before saving the session during migration
+	 */
+	@Property(name=PROP_USER_HOME_MIGRATION_CHUNK_SIZE, intValue=DEFAULT_USER_HOME_MIGRATION_CHUNK_SIZE, label="%userHome.migrationChunkSize.name", description="%userHome.migrationChunkSize.description")
+	private int userHomeMigrationChunkSize = DEFAULT_USER_HOME_MIGRATION_CHUNK_SIZE;
+
+	public static final String PROP_USER_HOME_PROVISIONING_THREADS = "userHome.provisioning.threads";
+	public static final int DEFAULT_USER_HOME_PROVISIONING_THREADS = 4;
+
+	/**
+	 * Number of the parallel sessions used by the bulk user home provisioning
+	 */
+	@Property(name=PROP_USER_HOME_PROVISIONING_THREADS, intValue=DEFAULT_USER_HOME_PROVISIONING_THREADS, label="%userHome.provisioning.threads.name", description="%userHome.provisioning.threads.description")
+	private int userHomeProvisioningThreads = DEFAULT_USER_HOME_PROVISIONING_THREADS;
+
+	public static final String PROP_USER_HOME_PROVISIONING_BATCH_SIZE = "userHome.provisioning.batchSize";
+	public static final int DEFAULT_USER_HOME_PROVISIONING_BATCH_SIZE = 200;
+
+	/**
+	 * Number of user homes created before saving the session during bulk provisioning
+	 */
+	@Property(name=PROP_USER_HOME_PROVISIONING_BATCH_SIZE, intValue=DEFAULT_USER_HOME_PROVISIONING_BATCH_SIZE, label="%userHome.provisioning.batchSize.name", description="%userHome.provisioning.batchSize.description")
+	private int userHomeProvisioningBatchSize = DEFAULT_USER_HOME_PROVISIONING_BATCH_SIZE;
+
+	public static final String PROP_USER_HOME_PROVISIONING_RETRIES = "userHome.provisioning.retries";
+	public static final int DEFAULT_USER_HOME_PROVISIONING_RETRIES = 3;
+
+	/**
+	 * Number of retries of a batch when the save conflicts with an other session
+	 */
+	@Property(name=PROP_USER_HOME_PROVISIONING_RETRIES, intValue=DEFAULT_USER_HOME_PROVISIONING_RETRIES, label="%userHome.provisioning.retries.name", description="%userHome.provisioning.retries.description")
+	private int userHomeProvisioningRetries = DEFAULT_USER_HOME_PROVISIONING_RETRIES;
+
+	public static final String PROP_SESSION_POOL_SIZE = "sessionPool.size";
+	public static final int DEFAULT_SESSION_POOL_SIZE = 4;
+
+	/**
+	 * Maximum number of the administrative sessions used by the session-less lookup methods
+	 */
+	@Property(name=PROP_SESSION_POOL_SIZE, intValue=DEFAULT_SESSION_POOL_SIZE, label="%sessionPool.size.name", description="%sessionPool.size.description")
+	private int sessionPoolSize = DEFAULT_SESSION_POOL_SIZE;
+
+	public static final String PROP_SESSION_POOL_BORROW_TIMEOUT = "sessionPool.borrowTimeout";
+	public static final long DEFAULT_SESSION_POOL_BORROW_TIMEOUT = 10000;
+
+	/**
+	 * Maximum time to wait for a pooled session in milliseconds
+	 */
+	@Property(name=PROP_SESSION_POOL_BORROW_TIMEOUT, longValue=DEFAULT_SESSION_POOL_BORROW_TIMEOUT, label="%sessionPool.borrowTimeout.name", description="%sessionPool.borrowTimeout.description")
+	private long sessionPoolBorrowTimeout = DEFAULT_SESSION_POOL_BORROW_TIMEOUT;
+
+	private AdministrativeSessionPool sessionPool;
+
+	public static final String PROP_PERMISSION_CACHE_PRINCIPALS = "permissionCache.principals";
+	public static final int DEFAULT_PERMISSION_CACHE_PRINCIPALS = 10000;
+
+	/**
+	 * Maximum number of the cached effective group sets
+	 */
+	@Property(name=PROP_PERMISSION_CACHE_PRINCIPALS, intValue=DEFAULT_PERMISSION_CACHE_PRINCIPALS, label="%permissionCache.principals.name", description="%permissionCache.principals.description")
+	private int permissionCachePrincipals = DEFAULT_PERMISSION_CACHE_PRINCIPALS;
+
+	public static final String PROP_PERMISSION_CACHE_ACLS = "permissionCache.acls";
+	public static final int DEFAULT_PERMISSION_CACHE_ACLS = 50000;
+
+	/**
+	 * Maximum number of the cached access control lists (nodes without ACL are cached too)
+	 */
+	@Property(name=PROP_PERMISSION_CACHE_ACLS, intValue=DEFAULT_PERMISSION_CACHE_ACLS, label="%permissionCache.acls.name", description="%permissionCache.acls.description")
+	private int permissionCacheAcls = DEFAULT_PERMISSION_CACHE_ACLS;
+
+	public static final String PROP_PERMISSION_CACHE_DECISIONS = "permissionCache.decisions";
+	public static final int DEFAULT_PERMISSION_CACHE_DECISIONS = 100000;
+
+	/**
+	 * Maximum number of the permission decisions shared by the sessions of the same group set, 0 disables the sharing
+	 */
+	@Property(name=PROP_PERMISSION_CACHE_DECISIONS, intValue=DEFAULT_PERMISSION_CACHE_DECISIONS, label="%permissionCache.decisions.name", description="%permissionCache.decisions.description")
+	private int permissionCacheDecisions = DEFAULT_PERMISSION_CACHE_DECISIONS;
+
+	private PermissionEvaluator permissionEvaluator;
+	private PermissionDecisionCache permissionDecisionCache;
+
+	public static final String PROP_INSTRUMENTATION_ENABLED = "instrumentation.enabled";
+	public static final boolean DEFAULT_INSTRUMENTATION_ENABLED = false;
+
+	/**
+	 * Measure the calls of every service method (see SecurityManagerMetrics). When disabled
+	 * the service is registered without any wrapper.
+	 */
+	@Property(name=PROP_INSTRUMENTATION_ENABLED, boolValue=DEFAULT_INSTRUMENTATION_ENABLED, label="%instrumentation.enabled.name", description="%instrumentation.enabled.description")
+	private boolean instrumentationEnabled = DEFAULT_INSTRUMENTATION_ENABLED;
+
+	public static final String PROP_TRACING_ENABLED = "tracing.enabled";
+	public static final boolean DEFAULT_TRACING_ENABLED = false;
+
+	/**
+	 * Count the UserManager, AccessControlManager and Node calls of every service call
+	 * and log the slow ones to the org.liveSense.service.securityManager.slowOps logger
+	 */
+	@Property(name=PROP_TRACING_ENABLED, boolValue=DEFAULT_TRACING_ENABLED, label="%tracing.enabled.name", description="%tracing.enabled.description")
+	private boolean tracingEnabled = DEFAULT_TRACING_ENABLED;
+
+	public static final String PROP_TRACING_SLOW_OP_CALLS = "tracing.slowOp.calls";
+	public static final int DEFAULT_TRACING_SLOW_OP_CALLS = 100;
+
+	/**
+	 * Number of repository calls above which a service call is logged as slow
+	 */
+	@Property(name=PROP_TRACING_SLOW_OP_CALLS, intValue=DEFAULT_TRACING_SLOW_OP_CALLS, label="%tracing.slowOp.calls.name", description="%tracing.slowOp.calls.description")
+	private int tracingSlowOpCalls = DEFAULT_TRACING_SLOW_OP_CALLS;
+
+	public static final String PROP_TRACING_SLOW_OP_MILLIS = "tracing.slowOp.millis";
+	public static final long DEFAULT_TRACING_SLOW_OP_MILLIS = 500;
+
+	/**
+	 * Duration in milliseconds above which a service call is logged as slow
+	 */
+	@Property(name=PROP_TRACING_SLOW_OP_MILLIS, longValue=DEFAULT_TRACING_SLOW_OP_MILLIS, label="%tracing.slowOp.millis.name", description="%tracing.slowOp.millis.description")
+	private long tracingSlowOpMillis = DEFAULT_TRACING_SLOW_OP_MILLIS;
+
+	public static final String PROP_LOOKUP_QUERY_THRESHOLD = "lookup.queryThreshold";
+	public static final int DEFAULT_LOOKUP_QUERY_THRESHOLD = 100;
+
+	/**
+	 * Number of names from which the batch authorizable lookup uses queries instead of one
+	 * lookup per name, 0 disables the queries
+	 */
+	@Property(name=PROP_LOOKUP_QUERY_THRESHOLD, intValue=DEFAULT_LOOKUP_QUERY_THRESHOLD, label="%lookup.queryThreshold.name", description="%lookup.queryThreshold.description")
+	private int lookupQueryThreshold = DEFAULT_LOOKUP_QUERY_THRESHOLD;
+
+	private static final int LOOKUP_QUERY_CHUNK = 100;
+
+	public static final String PROP_MEMBERSHIP_BATCH_SIZE = "membership.batchSize";
+	public static final int DEFAULT_MEMBERSHIP_BATCH_SIZE = 500;
+
+	/**
+	 * Number of principals added to or removed from a group before saving the session during
+	 * the bulk membership changes
+	 */
+	@Property(name=PROP_MEMBERSHIP_BATCH_SIZE, intValue=DEFAULT_MEMBERSHIP_BATCH_SIZE, label="%membership.batchSize.name", description="%membership.batchSize.description")
+	private int membershipBatchSize = DEFAULT_MEMBERSHIP_BATCH_SIZE;
+
+	public static final String PROP_PROPERTIES_BATCH_SIZE = "properties.batchSize";
+	public static final int DEFAULT_PROPERTIES_BATCH_SIZE = 200;
+
+	/**
+	 * Number of changed principals before saving the session during the bulk property modification
+	 */
+	@Property(name=PROP_PROPERTIES_BATCH_SIZE, intValue=DEFAULT_PROPERTIES_BATCH_SIZE, label="%properties.batchSize.name", description="%properties.batchSize.description")
+	private int propertiesBatchSize = DEFAULT_PROPERTIES_BATCH_SIZE;
+
+	public static final String PROP_EXPORT_PAGE_SIZE = "export.pageSize";
+	public static final int DEFAULT_EXPORT_PAGE_SIZE = 500;
+
+	/**
+	 * Number of the authorizables queried at once by the export
+	 */
+	@Property(name=PROP_EXPORT_PAGE_SIZE, intValue=DEFAULT_EXPORT_PAGE_SIZE, label="%export.pageSize.name", description="%export.pageSize.description")
+	private int exportPageSize = DEFAULT_EXPORT_PAGE_SIZE;
+
+	public static final String PROP_LARGE_GROUP_THRESHOLD = "largeGroup.threshold";
+	public static final int DEFAULT_LARGE_GROUP_THRESHOLD = 10000;
+
+	/**
+	 * Number of declared members from which the new members of a group are added to its
+	 * shard groups, 0 disables the sharding
+	 */
+	@Property(name=PROP_LARGE_GROUP_THRESHOLD, intValue=DEFAULT_LARGE_GROUP_THRESHOLD, label="%largeGroup.threshold.name", description="%largeGroup.threshold.description")
+	private int largeGroupThreshold = DEFAULT_LARGE_GROUP_THRESHOLD;
+
+	public static final String PROP_LARGE_GROUP_SHARDS = "largeGroup.shards";
+	public static final int DEFAULT_LARGE_GROUP_SHARDS = 64;
+
+	/**
+	 * Number of the shard groups of a sharded group, used when the group is sharded
+	 */
+	@Property(name=PROP_LARGE_GROUP_SHARDS, intValue=DEFAULT_LARGE_GROUP_SHARDS, label="%largeGroup.shards.name", description="%largeGroup.shards.description")
+	private int largeGroupShards = DEFAULT_LARGE_GROUP_SHARDS;
+
+	private MemberShards memberShards = new MemberShards(DEFAULT_LARGE_GROUP_THRESHOLD, DEFAULT_LARGE_GROUP_SHARDS);
+
+	private static final String METRICS_MBEAN_NAME = "org.liveSense:type=SecurityManager,name=metrics";
+	/** Instance keys of the MBeans registered outside of the OSGi container (no component.id) */
+	private static final AtomicLong mbeanInstances = new AtomicLong();
+
+	/** The registered SecurityManagerService: this or its tracing and/or instrumented proxy */
+	private volatile SecurityManagerService registeredService;
+	private ServiceRegistration serviceRegistration;
+	private ServiceRegistration metricsRegistration;
+	private ObjectName metricsMBeanName;
+
+	private static final String HOME_NODE = "home";
+	/** Prefix of the shard folder names, so a shard folder and a flat layout user home do not share a name */
+	private static final String SHARD_FOLDER_PREFIX = "~";
+	private static final String REP_POLICY = "rep:policy";
+	private static final AccessControlEntry[] NO_ENTRIES = new AccessControlEntry[0];
+
+	private ExecutorService backgroundExecutor;
+
+	/** Session of the synchronous observation of the local ACL changes (default workspace) */
+	private Session localChangeSession;
+	/** Session of the synchronous observation of the local membership changes (security workspace) */
+	private Session localMembershipChangeSession;
+
+	/**
+	 * Activates this component.
+	 *
+	 * @param componentContext The OSGi <code>ComponentContext</code> of this
+	 *            component.
+	 */
+	protected void activate(ComponentContext componentContext) {
+		Dictionary<?, ?> props = componentContext.getProperties();
+		userHomeShardDepth = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_USER_HOME_SHARD_DEPTH), DEFAULT_USER_HOME_SHARD_DEPTH));
+		userHomeMigrationChunkSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_USER_HOME_MIGRATION_CHUNK_SIZE), DEFAULT_USER_HOME_MIGRATION_CHUNK_SIZE));
+		userHomeProvisioningThreads = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_USER_HOME_PROVISIONING_THREADS), DEFAULT_USER_HOME_PROVISIONING_THREADS));
+		userHomeProvisioningBatchSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_USER_HOME_PROVISIONING_BATCH_SIZE), DEFAULT_USER_HOME_PROVISIONING_BATCH_SIZE));
+		userHomeProvisioningRetries = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_USER_HOME_PROVISIONING_RETRIES), DEFAULT_USER_HOME_PROVISIONING_RETRIES));
+		sessionPoolSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_SESSION_POOL_SIZE), DEFAULT_SESSION_POOL_SIZE));
+		sessionPoolBorrowTimeout = Math.max(0, PropertiesUtil.toLong(props.get(PROP_SESSION_POOL_BORROW_TIMEOUT), DEFAULT_SESSION_POOL_BORROW_TIMEOUT));
+
+		sessionPool = new AdministrativeSessionPool(repository, sessionPoolSize, sessionPoolBorrowTimeout);
+
+		permissionCachePrincipals = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_PERMISSION_CACHE_PRINCIPALS), DEFAULT_PERMISSION_CACHE_PRINCIPALS));
+		permissionCacheAcls = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_PERMISSION_CACHE_ACLS), DEFAULT_PERMISSION_CACHE_ACLS));
+		permissionCacheDecisions = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_PERMISSION_CACHE_DECISIONS), DEFAULT_PERMISSION_CACHE_DECISIONS));
+		permissionEvaluator = new PermissionEvaluator(permissionCachePrincipals, permissionCacheAcls);
+		permissionDecisionCache = permissionCacheDecisions > 0 ? new PermissionDecisionCache(permissionEvaluator, sessionPool, permissionCachePrincipals, permissionCacheDecisions) : null;
+		registerLocalChangeListeners();
+
+		lookupQueryThreshold = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_LOOKUP_QUERY_THRESHOLD), DEFAULT_LOOKUP_QUERY_THRESHOLD));
+		membershipBatchSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_MEMBERSHIP_BATCH_SIZE), DEFAULT_MEMBERSHIP_BATCH_SIZE));
+		propertiesBatchSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_PROPERTIES_BATCH_SIZE), DEFAULT_PROPERTIES_BATCH_SIZE));
+		exportPageSize = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_EXPORT_PAGE_SIZE), DEFAULT_EXPORT_PAGE_SIZE));
+		largeGroupThreshold = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_LARGE_GROUP_THRESHOLD), DEFAULT_LARGE_GROUP_THRESHOLD));
+		largeGroupShards = Math.max(1, PropertiesUtil.toInteger(props.get(PROP_LARGE_GROUP_SHARDS), DEFAULT_LARGE_GROUP_SHARDS));
+		memberShards = new MemberShards(largeGroupThreshold, largeGroupShards);
+
+		backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "liveSense security manager background job");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		// The SecurityManagerService is registered manually, so it can be the instrumented proxy
+		instrumentationEnabled = PropertiesUtil.toBoolean(props.get(PROP_INSTRUMENTATION_ENABLED), DEFAULT_INSTRUMENTATION_ENABLED);
+		tracingEnabled = PropertiesUtil.toBoolean(props.get(PROP_TRACING_ENABLED), DEFAULT_TRACING_ENABLED);
+		tracingSlowOpCalls = Math.max(0, PropertiesUtil.toInteger(props.get(PROP_TRACING_SLOW_OP_CALLS), DEFAULT_TRACING_SLOW_OP_CALLS));
+		tracingSlowOpMillis = Math.max(0, PropertiesUtil.toLong(props.get(PROP_TRACING_SLOW_OP_MILLIS), DEFAULT_TRACING_SLOW_OP_MILLIS));
+		BundleContext bundleContext = componentContext.getBundleContext();
+		Dictionary<String, Object> serviceProperties = getServiceProperties(props);
+		SecurityManagerService service = this;
+		if (tracingEnabled) {
+			service = (SecurityManagerService) new JcrCallTracer(service, SecurityManagerService.class, tracingSlowOpCalls, tracingSlowOpMillis).newProxy();
+		}
+		if (instrumentationEnabled) {
+			ServiceInstrumentation instrumentation = new ServiceInstrumentation(service, SecurityManagerService.class);
+			service = (SecurityManagerService) instrumentation.newProxy();
+			metricsRegistration = bundleContext.registerService(SecurityManagerMetrics.class.getName(), instrumentation, serviceProperties);
+			registerMetricsMBean(instrumentation, props);
+		}
+		registeredService = service;
+		serviceRegistration = bundleContext.registerService(SecurityManagerService.class.getName(), service, serviceProperties);
+	}
+
+	/**
+	 * The public component properties (configuration, service.pid, service.vendor, ...) as service
+	 * properties, like the ones of a service registered by the component runtime
+	 */
+	static Dictionary<String, Object> getServiceProperties(Dictionary<?, ?> props) {
+		Dictionary<String, Object> ret = new Hashtable<String, Object>();
+		for (Enumeration<?> keys = props.keys(); keys.hasMoreElements(); ) {
+			Object key = keys.nextElement();
+			// The names starting with a dot are private properties of the component
+			if (key instanceof String && !((String) key).startsWith(".")) {
+				ret.put((String) key, props.get(key));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The local ACL and membership changes invalidate the caches before the save returns,
+	 * see {@link LocalSecurityChangeListener}. The ACLs of the content are observed in the
+	 * default workspace, the groups in the security workspace they are stored in.
+	 */
+	private void registerLocalChangeListeners() {
+		try {
+			if (!"true".equals(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED))) {
+				return;
+			}
+			localChangeSession = repository.loginAdministrative(null);
+			localChangeSession.getWorkspace().getObservationManager().addEventListener(new LocalSecurityChangeListener(this), Event.NODE_ADDED | Event.NODE_REMOVED, "/", true, null, new String[]{"rep:ACL"}, false);
+			localMembershipChangeSession = repository.loginAdministrative(UserResourceChangeListener.SECURITY_WORKSPACE);
+			localMembershipChangeSession.getWorkspace().getObservationManager().addEventListener(new LocalSecurityChangeListener(this), Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, SecurityEventClassifier.GROUPS_PATH, true, null, new String[]{"rep:Group", "rep:Members"}, false);
+		} catch (RepositoryException ex) {
+			log.warn("Could not register the local security change listeners, the caches are invalidated asynchronously", ex);
+		}
+	}
+
+	/**
+	 * Returns the MBean name of a component instance: the base name with the instance key, the
+	 * component.id of the component or, outside of the OSGi container, a counter of the JVM. The
+	 * instances in one JVM (e.g. the nodes of a cluster test) do not replace each other's MBeans.
+	 */
+	static ObjectName getMBeanName(String baseName, Dictionary<?, ?> props) throws MalformedObjectNameException {
+		Object id = props == null ? null : props.get(ComponentConstants.COMPONENT_ID);
+		String instance = id != null ? id.toString() : "local-" + mbeanInstances.incrementAndGet();
+		return new ObjectName(baseName + ",instance=" + instance);
+	}
+
+	private void registerMetricsMBean(SecurityManagerMetrics metrics, Dictionary<?, ?> props) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = getMBeanName(METRICS_MBEAN_NAME, props);
+			server.registerMBean(new StandardMBean(metrics, SecurityManagerMetricsMBean.class), name);
+			metricsMBeanName = name;
+		} catch (JMException ex) {
+			log.warn("Could not register the metrics MBean", ex);
+		}
+	}
+
+	protected void deactivate(ComponentContext componentContext) {
+		if (serviceRegistration != null) {
+			serviceRegistration.unregister();
+			serviceRegistration = null;
+		}
+		if (metricsRegistration != null) {
+			metricsRegistration.unregister();
+			metricsRegistration = null;
+		}
+		if (metricsMBeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName);
+			} catch (JMException ex) {
+				log.warn("Could not unregister the metrics MBean", ex);
+			}
+			metricsMBeanName = null;
+		}
+		registeredService = null;
+		if (localChangeSession != null) {
+			localChangeSession.logout();
+			localChangeSession = null;
+		}
+		if (localMembershipChangeSession != null) {
+			localMembershipChangeSession.logout();
+			localMembershipChangeSession = null;
+		}
+		permissionDecisionCache = null;
+		if (backgroundExecutor != null) {
+			backgroundExecutor.shutdownNow();
+			backgroundExecutor = null;
+		}
+		if (sessionPool != null) {
+			sessionPool.close();
+			sessionPool = null;
+		}
+	}
+
+	private Session borrowSession() throws InternalException {
+		AdministrativeSessionPool pool = sessionPool;
+		if (pool == null) {
+			throw new InternalException("Security manager is not active");
+		}
+		try {
+			return JcrCallTracer.wrap(pool.borrow());
+		} catch (RepositoryException ex) {
+			throw new InternalException("Could not get administrative session", ex);
+		}
+	}
+
+	private void releaseSession(Session session) {
+		session = (Session) JcrCallTracer.unwrap(session);
+		AdministrativeSessionPool pool = sessionPool;
+		if (pool != null) {
+			pool.release(session);
+		} else {
+			session.logout();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SessionPoolMetrics getSessionPoolMetrics() {
+		return sessionPool;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean hasPrivileges(String principalId, String absPath, String... privileges) throws PrincipalNotExistsException, InternalException {
+		PermissionEvaluator evaluator = permissionEvaluator;
+		if (evaluator == null) {
+			throw new InternalException("Security manager is not active");
+		}
+		Object event = SecurityFlightRecorder.begin();
+		Session session = borrowSession();
+		try {
+			PermissionEvaluator.PrincipalSet principals = evaluator.getPrincipalSet(session, principalId);
+			if (principals == null) {
+				throw new PrincipalNotExistsException("Principal does not exist: " + principalId);
+			}
+			return evaluator.hasPrivileges(session, principals, absPath, evaluator.getPrivilegeBits(session, privileges));
+		} catch (PathNotFoundException ex) {
+			// Nothing is granted on a node which does not exist
+			return false;
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception: " + absPath, ex);
+		} finally {
+			releaseSession(session);
+			SecurityFlightRecorder.commit(event, "hasPrivileges", principalId, absPath, null);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SecurityContext getSecurityContext(Session session) {
+		SecurityManagerService service = registeredService;
+		return new SessionSecurityContext(service != null ? service : this, session);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void userAdded(String userId) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void userRemoved(String userId) {
+		PermissionEvaluator evaluator = permissionEvaluator;
+		if (evaluator != null) {
+			evaluator.principalRemoved(userId);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void groupAdded(String groupId) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void groupRemoved(String groupId) {
+		// The group disappears from the effective group sets of its members
+		membershipChanged(groupId);
+		// A new principal of the same name must not inherit the decisions
+		PermissionDecisionCache decisionCache = permissionDecisionCache;
+		if (decisionCache != null) {
+			decisionCache.clear();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void membershipChanged(String groupId) {
+		PermissionEvaluator evaluator = permissionEvaluator;
+		if (evaluator != null) {
+			evaluator.membershipChanged();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void aclChanged(String path) {
+		PermissionEvaluator evaluator = permissionEvaluator;
+		if (evaluator != null) {
+			evaluator.aclChanged(path);
+		}
+		PermissionDecisionCache decisionCache = permissionDecisionCache;
+		if (decisionCache != null) {
+			decisionCache.aclChanged(path);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void changesDropped() {
+		PermissionEvaluator evaluator = permissionEvaluator;
+		if (evaluator != null) {
+			evaluator.clear();
+		}
+		PermissionDecisionCache decisionCache = permissionDecisionCache;
+		if (decisionCache != null) {
+			decisionCache.changesDropped();
+		}
+	}
+
+	/**
+	 * Checks the privilege of the session, sharing the decision with the sessions of the same group set if possible
+	 */
+	private boolean hasSessionPrivilege(Session session, String absPath, String privilege) throws RepositoryException {
+		Object event = SecurityFlightRecorder.begin();
+		String cache = SecurityFlightRecorder.CACHE_BYPASS;
+		try {
+			PermissionDecisionCache decisionCache = permissionDecisionCache;
+			if (decisionCache != null) {
+				try {
+					int decision = decisionCache.getDecision(session, absPath, privilege);
+					cache = (decision & PermissionDecisionCache.CACHED) != 0 ? SecurityFlightRecorder.CACHE_HIT : SecurityFlightRecorder.CACHE_MISS;
+					decision &= ~PermissionDecisionCache.CACHED;
+					if (decision != PermissionDecisionCache.SESSION) {
+						return decision == PermissionDecisionCache.GRANTED;
+					}
+				} catch (RepositoryException ex) {
+					log.debug("Shared permission decision failed, checking with the session: " + absPath, ex);
+				}
+			}
+			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
+			return accessControlManager.hasPrivileges(absPath, new Privilege[]{
+						accessControlManager.privilegeFromName(privilege)
+					});
+		} finally {
+			if (event != null) {
+				SecurityFlightRecorder.commit(event, "capability:" + privilege, session.getUserID(), absPath, cache);
+			}
+		}
+	}
+
 	
 	/** Returns the JCR repository used by this service. */
 	@Override
@@ -128,6 +692,9 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public Group addGroup(Session session, final String groupName, Map<String, Object> properties) throws GroupAlreadyExistsException, InternalException {
 		Group group = null;
 		try {
+			if (MemberShards.hasShardName(groupName)) {
+				throw new IllegalArgumentException("The group name is reserved for the member shards: " + groupName);
+			}
 
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(groupName);
@@ -186,6 +753,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 			if (!authorizable.isGroup()) {
 				throw new PrincipalIsNotGroupException("Principal is not a group: " + groupName);
 			}
+			MemberShards.removeShards(userManager, (Group) authorizable);
 			authorizable.remove();
 		} catch (RepositoryException e) {
 						throw new InternalException("Repository exception", e);
@@ -224,6 +792,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public Group getGroupByName(Session session, String groupName) throws GroupNotExistsException,
 			InternalException, PrincipalIsNotGroupException {
 
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(groupName);
@@ -239,6 +808,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		} catch (RepositoryException ex) {
 						throw new InternalException("Repository exception", ex);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getGroupByName", groupName, null, null);
 		}
 	}
 
@@ -247,6 +817,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public User getUserByName(Session session, String userName) throws UserNotExistsException,
 			InternalException, PrincipalIsNotUserException {
 
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(userName);
@@ -262,6 +833,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		} catch (RepositoryException ex) {
 						throw new InternalException("Repository exception", ex);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getUserByName", userName, null, null);
 		}
 	}
 
@@ -270,6 +842,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public Authorizable getAuthorizableByName(Session session, String principal) throws PrincipalNotExistsException,
 			InternalException {
 
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(principal);
@@ -281,69 +854,155 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		} catch (RepositoryException ex) {
 						throw new InternalException("Repository exception", ex);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getAuthorizableByName", principal, null, null);
 		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public void changePasswordByName(Session session, String userName, String password) throws UserNotExistsException, PrincipalIsNotUserException, InternalException {
+	public AuthorizableLookupResult getAuthorizablesByNames(Session session, Collection<String> principals) throws InternalException {
+		Object event = SecurityFlightRecorder.begin();
+		AuthorizableLookupResult ret = new AuthorizableLookupResult();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
-			Authorizable authorizable = userManager.getAuthorizable(userName);
-
-			if (authorizable == null) {
-				throw new UserNotExistsException(
-						"User does not exist: "
-						+ userName);
+			Set<String> names = new LinkedHashSet<String>(principals);
+			Map<String, Authorizable> queried = null;
+			boolean pendingChanges = false;
+			if (lookupQueryThreshold > 0 && names.size() >= lookupQueryThreshold) {
+				queried = queryAuthorizables(userManager, names);
+				// The query does not see the unsaved authorizables
+				pendingChanges = session.hasPendingChanges();
 			}
-			if (authorizable.isGroup()) {
-				throw new PrincipalIsNotUserException("Principal is not user: " + userName);
+			for (String name : names) {
+				Authorizable authorizable;
+				if (queried == null || pendingChanges || !Text.escapeIllegalJcrChars(name).equals(name)) {
+					// Small batch, a possibly unsaved authorizable, or a node name which differs from the ID
+					authorizable = userManager.getAuthorizable(name);
+				} else {
+					authorizable = queried.get(name);
+				}
+				if (authorizable == null || MemberShards.isShard(authorizable)) {
+					ret.addMissing(name);
+				} else {
+					ret.addFound(name, authorizable);
+				}
 			}
-			User user = (User) authorizable;
-			user.changePassword(password);
-			user.setProperty("jcr:Password", GenericValue.getGenericValueFromObject(password).get());
-
-		} catch (RepositoryException e) {
-						throw new InternalException("Repository exception", e);
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getAuthorizablesByNames", null, null, null);
 		}
-
+		return ret;
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public List<Group> getEffectiveMemberOfByName(Session session, String principal) throws PrincipalNotExistsException, InternalException {
-		ArrayList<Group> ret = new ArrayList<Group>();
-
+	public Authorizable findAuthorizable(Session session, String principal) throws InternalException {
 		try {
-			UserManager userManager = AccessControlUtil.getUserManager(session);
-			Authorizable authorizable = userManager.getAuthorizable(principal);
-
-			if (authorizable == null) {
-				// user already exists!
-				throw new PrincipalNotExistsException(
-						"Principal does not exist: "
-						+ principal);
-			}
-
-			Iterator<Group> iter = authorizable.memberOf();
-			while (iter.hasNext()) {
-				ret.add(iter.next());
-			}
-
-		} catch (RepositoryException e) {
-						throw new InternalException("Repository exception", e);
-
-		} finally {
+			return AccessControlUtil.getUserManager(session).getAuthorizable(principal);
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
 		}
-		return ret;
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public List<Group> getDeclaredMemberOfByName(Session session, String principal) throws PrincipalNotExistsException, InternalException {
+	public User findUser(Session session, String userName) throws InternalException {
+		Authorizable authorizable = findAuthorizable(session, userName);
+		return authorizable != null && !authorizable.isGroup() ? (User) authorizable : null;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Group findGroup(Session session, String groupName) throws InternalException {
+		Authorizable authorizable = findAuthorizable(session, groupName);
+		return authorizable != null && authorizable.isGroup() ? (Group) authorizable : null;
+	}
+
+	/**
+	 * Finds the authorizables by ID with one query per LOOKUP_QUERY_CHUNK names. The node name of
+	 * an authorizable is its (escaped) ID, the query matches the node names (nameMatches also
+	 * accepts the principal names) and only the results whose ID is a requested name are
+	 * returned, so the names are resolved by ID as {@link UserManager#getAuthorizable(String)}
+	 * does, without a per-name lookup of the misses. The shards of the large groups are left out.
+	 */
+	private Map<String, Authorizable> queryAuthorizables(UserManager userManager, Set<String> names) throws RepositoryException {
+		Map<String, Authorizable> ret = new HashMap<String, Authorizable>(names.size() * 2);
+		Iterator<String> iter = names.iterator();
+		while (iter.hasNext()) {
+			final List<String> chunk = new ArrayList<String>(LOOKUP_QUERY_CHUNK);
+			while (iter.hasNext() && chunk.size() < LOOKUP_QUERY_CHUNK) {
+				chunk.add(escapeLikePattern(iter.next()));
+			}
+			Iterator<Authorizable> result = userManager.findAuthorizables(new Query() {
+				@Override
+				public <T> void build(QueryBuilder<T> builder) {
+					T condition = null;
+					for (String pattern : chunk) {
+						T matches = builder.nameMatches(pattern);
+						condition = condition == null ? matches : builder.or(condition, matches);
+					}
+					builder.setCondition(condition);
+				}
+			});
+			while (result.hasNext()) {
+				Authorizable authorizable = result.next();
+				String id = authorizable.getID();
+				if (names.contains(id) && !MemberShards.isShard(authorizable)) {
+					ret.put(id, authorizable);
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Escapes the wildcards of a jcr:like pattern
+	 */
+	private static String escapeLikePattern(String value) {
+		StringBuilder ret = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '%' || c == '_' || c == '\\') {
+				ret.append('\\');
+			}
+			ret.append(c);
+		}
+		return ret.toString();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void changePasswordByName(Session session, String userName, String password) throws UserNotExistsException, PrincipalIsNotUserException, InternalException {
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			Authorizable authorizable = userManager.getAuthorizable(userName);
+
+			if (authorizable == null) {
+				throw new UserNotExistsException(
+						"User does not exist: "
+						+ userName);
+			}
+			if (authorizable.isGroup()) {
+				throw new PrincipalIsNotUserException("Principal is not user: " + userName);
+			}
+			User user = (User) authorizable;
+			user.changePassword(password);
+			user.setProperty("jcr:Password", GenericValue.getGenericValueFromObject(password).get());
+
+		} catch (RepositoryException e) {
+						throw new InternalException("Repository exception", e);
+		} finally {
+		}
+
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<Group> getEffectiveMemberOfByName(Session session, String principal) throws PrincipalNotExistsException, InternalException {
 		ArrayList<Group> ret = new ArrayList<Group>();
 
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(principal);
@@ -355,15 +1014,47 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 						+ principal);
 			}
 
-			Iterator<Group> iter = authorizable.declaredMemberOf();
+			Iterator<Group> iter = authorizable.memberOf();
 			while (iter.hasNext()) {
-				ret.add(iter.next());
+				Group group = iter.next();
+				if (!MemberShards.isShard(group)) {
+					ret.add(group);
+				}
+			}
+
+		} catch (RepositoryException e) {
+						throw new InternalException("Repository exception", e);
+
+		} finally {
+			SecurityFlightRecorder.commit(event, "getEffectiveMemberOfByName", principal, null, null);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<Group> getDeclaredMemberOfByName(Session session, String principal) throws PrincipalNotExistsException, InternalException {
+		ArrayList<Group> ret = new ArrayList<Group>();
+
+		Object event = SecurityFlightRecorder.begin();
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			Authorizable authorizable = userManager.getAuthorizable(principal);
+
+			if (authorizable == null) {
+				// user already exists!
+				throw new PrincipalNotExistsException(
+						"Principal does not exist: "
+						+ principal);
 			}
 
+			ret.addAll(MemberShards.getDeclaredMemberOf(userManager, authorizable));
+
 		} catch (RepositoryException e) {
 						throw new InternalException("Repository exception", e);
 
 		} finally {
+			SecurityFlightRecorder.commit(event, "getDeclaredMemberOfByName", principal, null, null);
 		}
 		return ret;
 	}
@@ -373,6 +1064,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public List<Authorizable> getEffectiveMembersByName(Session session, String groupName) throws InternalException, PrincipalIsNotGroupException, GroupNotExistsException {
 		Set<Authorizable> ret = new HashSet<Authorizable>();
 		
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(groupName);
@@ -389,14 +1081,19 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 
 			Iterator<Authorizable> iter = ((Group) authorizable).getMembers();
 			while (iter.hasNext()) {
-				Group act = (Group)iter.next();
-				ret.addAll(getEffectiveMembersByName(session, act.getID()));
-				ret.add(act);
+				Authorizable act = iter.next();
+				if (act.isGroup()) {
+					ret.addAll(getEffectiveMembersByName(session, act.getID()));
+				}
+				if (!MemberShards.isShard(act)) {
+					ret.add(act);
+				}
 			}
 
 		} catch (RepositoryException e) {
 						throw new InternalException("Repository exception", e);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getEffectiveMembersByName", groupName, null, null);
 		}
 		List<Authorizable> out = new ArrayList<Authorizable>();
 		out.addAll(ret);
@@ -408,6 +1105,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public List<Authorizable> getDeclaredMembersByName(Session session, String groupName) throws InternalException, PrincipalIsNotGroupException, GroupNotExistsException {
 		List<Authorizable> ret = new ArrayList<Authorizable>();
 
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(groupName);
@@ -421,14 +1119,12 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 				throw new PrincipalIsNotGroupException("Principal is not a group: " + groupName);
 			}
 
-			Iterator<Authorizable> iter = ((Group) authorizable).getDeclaredMembers();
-			while (iter.hasNext()) {
-				ret.add(authorizable);
-			}
+			ret.addAll(MemberShards.getDeclaredMembers((Group) authorizable).keySet());
 
 		} catch (RepositoryException e) {
 						throw new InternalException("Repository exception", e);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getDeclaredMembersByName", groupName, null, null);
 		}
 		return ret;
 	}
@@ -458,12 +1154,179 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		return ret;
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public Map<String, GenericValue> getPrincipalPropertiesByName(Session session, String principal, Collection<String> propertyNames) throws PrincipalNotExistsException, InternalException {
+		Map<String, GenericValue> ret = new HashMap<String, GenericValue>();
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			Authorizable authorizable = userManager.getAuthorizable(principal);
+			if (authorizable == null) {
+				throw new PrincipalNotExistsException("Principal does not exist: " + principal);
+			}
+			for (String name : propertyNames) {
+				Value[] values = authorizable.getProperty(name);
+				if (values != null) {
+					ret.put(name, GenericValue.getGenericValueFromObject(values));
+				}
+			}
+		} catch (RepositoryException e) {
+			throw new InternalException("Repository exception", e);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PrincipalPropertyTable getPrincipalPropertyTable(Session session, Collection<String> principals, Collection<String> propertyNames) throws InternalException {
+		String[] names = propertyNames.toArray(new String[propertyNames.size()]);
+		PrincipalPropertyTable ret = new PrincipalPropertyTable(names, principals.size());
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			for (String principal : principals) {
+				Authorizable authorizable = userManager.getAuthorizable(principal);
+				if (authorizable == null) {
+					ret.addMissing(principal);
+					continue;
+				}
+				int row = ret.addRow(principal);
+				for (int i = 0; i < names.length; i++) {
+					Value[] values = authorizable.getProperty(names[i]);
+					if (values != null) {
+						ret.set(row, i, GenericValue.getGenericValueFromObject(values));
+					}
+				}
+			}
+		} catch (RepositoryException e) {
+			throw new InternalException("Repository exception", e);
+		}
+		ret.trim();
+		return ret;
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void modifyPrincipalPropertiesByName(Session session, String principal, Map<String, GenericValue> properties)
 			throws UserNotExistsException, InternalException,
 			PrincipalIsNotUserException {
-		// TODO Implementing
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			Authorizable authorizable = userManager.getAuthorizable(principal);
+			if (authorizable == null) {
+				throw new UserNotExistsException("Principal does not exist: " + principal);
+			}
+			SecurityWorkspaceSession securitySession = new SecurityWorkspaceSession(repository, session);
+			try {
+				modifyProperties(securitySession, authorizable, properties);
+			} finally {
+				securitySession.close();
+			}
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Set<String> modifyPrincipalPropertiesByName(Session session, Map<String, Map<String, GenericValue>> properties) throws InternalException {
+		Set<String> missing = new HashSet<String>();
+		SecurityWorkspaceSession securitySession = new SecurityWorkspaceSession(repository, session);
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			int pending = 0;
+			for (Map.Entry<String, Map<String, GenericValue>> entry : properties.entrySet()) {
+				Authorizable authorizable = userManager.getAuthorizable(entry.getKey());
+				if (authorizable == null) {
+					missing.add(entry.getKey());
+					continue;
+				}
+				if (modifyProperties(securitySession, authorizable, entry.getValue()) > 0 && ++pending >= propertiesBatchSize) {
+					session.save();
+					pending = 0;
+				}
+			}
+			// Nothing is saved when nothing was changed by this call
+			if (pending > 0) {
+				session.save();
+			}
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		} finally {
+			securitySession.close();
+		}
+		return missing;
+	}
+
+	/**
+	 * Returns whether the existing property of the authorizable is multi-valued, null if it can
+	 * not be read in the security workspace
+	 */
+	private static Boolean isMultiple(SecurityWorkspaceSession securitySession, Authorizable authorizable, String name) throws RepositoryException {
+		Session session = securitySession.get();
+		String path = authorizable.getPath() + "/" + name;
+		return session.propertyExists(path) ? Boolean.valueOf(session.getProperty(path).isMultiple()) : null;
+	}
+
+	/**
+	 * Writes the properties which differ from the current values, null values remove the property.
+	 * A single-valued property and a multi-valued one with one value are different: when the
+	 * values are the same and there is one, the property node is read to tell them apart, and
+	 * the property is rewritten if that is not possible.
+	 *
+	 * @return The number of the changed properties
+	 */
+	private int modifyProperties(SecurityWorkspaceSession securitySession, Authorizable authorizable, Map<String, GenericValue> properties) throws RepositoryException {
+		int changed = 0;
+		for (Map.Entry<String, GenericValue> entry : properties.entrySet()) {
+			String name = entry.getKey();
+			GenericValue value = entry.getValue();
+			Value[] current = authorizable.getProperty(name);
+			if (value == null) {
+				if (current != null && authorizable.removeProperty(name)) {
+					changed++;
+				}
+				continue;
+			}
+			// A single-valued property is returned as one value, more or less values are multi-valued
+			if (value.isMultiValue()) {
+				Value[] values = value.getValues();
+				if (current == null || !sameValues(current, values)
+						|| current.length == 1 && !Boolean.TRUE.equals(isMultiple(securitySession, authorizable, name))) {
+					authorizable.setProperty(name, values);
+					changed++;
+				}
+			} else {
+				Value single = value.get();
+				if (current == null || current.length != 1 || !sameValue(current[0], single)
+						|| !Boolean.FALSE.equals(isMultiple(securitySession, authorizable, name))) {
+					authorizable.setProperty(name, single);
+					changed++;
+				}
+			}
+		}
+		return changed;
+	}
+
+	private static boolean sameValues(Value[] current, Value[] values) throws RepositoryException {
+		if (current.length != values.length) {
+			return false;
+		}
+		for (int i = 0; i < values.length; i++) {
+			if (!sameValue(current[i], values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Binary values are never considered equal, comparing them would read both streams
+	 */
+	private static boolean sameValue(Value current, Value value) throws RepositoryException {
+		if (current.getType() != value.getType() || value.getType() == PropertyType.BINARY) {
+			return false;
+		}
+		return current.getString().equals(value.getString());
 	}
 
 	/** {@inheritDoc} */
@@ -506,6 +1369,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	/** {@inheritDoc} */
 	@Override
 	public Map<Principal, AccessRights> getDeclaredAccessRights(Session session, String absPath) throws InternalException {
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			Map<Principal, AccessRights> accessMap = new LinkedHashMap<Principal, AccessRights>();
 			AccessControlEntry[] entries = getDeclaredAccessControlEntries(session, absPath);
@@ -521,12 +1385,12 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 					if (isAllow) {
 						Privilege[] privs = ace.getPrivileges();
 						for (int i = 0; i < privs.length; i++) {
-							accessPrivleges.getGranted().add(new SerializablePrivilege(privs[i]));
+							accessPrivleges.getGranted().add(SerializablePrivilege.fromPrivilege(privs[i]));
 						}
 					} else {
 						Privilege[] privs = ace.getPrivileges();
 						for (int i = 0; i < privs.length; i++) {
-							accessPrivleges.getDenied().add(new SerializablePrivilege(privs[i]));
+							accessPrivleges.getDenied().add(SerializablePrivilege.fromPrivilege(privs[i]));
 						}
 					}
 				}
@@ -534,6 +1398,8 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 			return accessMap;
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception",ex);
+		} finally {
+			SecurityFlightRecorder.commit(event, "getDeclaredAccessRights", null, absPath, null);
 		}
 	}
 
@@ -546,7 +1412,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 				return accessControlEntries;
 			}
 		}
-		return new AccessControlEntry[0];
+		return NO_ENTRIES;
 	}
 
 	/** {@inheritDoc} */
@@ -576,13 +1442,13 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 								if (isAllow) {
 									Privilege[] privs = ace.getPrivileges();
 									for (int i = 0; i < privs.length; i++) {
-										rights.getGranted().add(new SerializablePrivilege(privs[i]));
+										rights.getGranted().add(SerializablePrivilege.fromPrivilege(privs[i]));
 
 									}
 								} else {
 									Privilege[] privs = ace.getPrivileges();
 									for (int i = 0; i < privs.length; i++) {
-										rights.getDenied().add(new SerializablePrivilege(privs[i]));
+										rights.getDenied().add(SerializablePrivilege.fromPrivilege(privs[i]));
 
 									}
 								}
@@ -615,6 +1481,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	/** {@inheritDoc} */
 	@Override
 	public Map<Principal, AccessRights> getEffectiveAccessRights(Session session, String absPath) throws InternalException {
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			Map<Principal, AccessRights> accessMap = new LinkedHashMap<Principal, AccessRights>();
 			AccessControlEntry[] entries = getEffectiveAccessControlEntries(session, absPath);
@@ -630,12 +1497,12 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 					if (allow) {
 						Privilege[] privs = ace.getPrivileges();
 						for (int i = 0; i < privs.length; i++) {
-							accessPrivleges.getGranted().add(new SerializablePrivilege(privs[i]));
+							accessPrivleges.getGranted().add(SerializablePrivilege.fromPrivilege(privs[i]));
 						}
 					} else {
 						Privilege[] privs = ace.getPrivileges();
 						for (int i = 0; i < privs.length; i++) {
-							accessPrivleges.getDenied().add(new SerializablePrivilege(privs[i]));
+							accessPrivleges.getDenied().add(SerializablePrivilege.fromPrivilege(privs[i]));
 						}
 					}
 				}
@@ -643,6 +1510,8 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 			return accessMap;
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception: ",ex);
+		} finally {
+			SecurityFlightRecorder.commit(event, "getEffectiveAccessRights", null, absPath, null);
 		}
 	}
 
@@ -655,7 +1524,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 				return accessControlEntries;
 			}
 		}
-		return new AccessControlEntry[0];
+		return NO_ENTRIES;
 	}
 
 	/** {@inheritDoc} */
@@ -685,12 +1554,12 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 								if (isAllow) {
 									Privilege[] privs = ace.getPrivileges();
 									for (int i = 0; i < privs.length; i++) {
-										rights.getGranted().add(new SerializablePrivilege(privs[i]));
+										rights.getGranted().add(SerializablePrivilege.fromPrivilege(privs[i]));
 									}
 								} else {
 									Privilege[] privs = ace.getPrivileges();
 									for (int i = 0; i < privs.length; i++) {
-										rights.getDenied().add(new SerializablePrivilege(privs[i]));
+										rights.getDenied().add(SerializablePrivilege.fromPrivilege(privs[i]));
 									}
 								}
 							}
@@ -721,10 +1590,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Override
 	public boolean canAddChildren(Session session, String absPath) {
 		try {
-			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
-			return accessControlManager.hasPrivileges(absPath, new Privilege[]{
-						accessControlManager.privilegeFromName(Privilege.JCR_ADD_CHILD_NODES)
-					});
+			return hasSessionPrivilege(session, absPath, Privilege.JCR_ADD_CHILD_NODES);
 		} catch (RepositoryException e) {
 			return false;
 		}
@@ -744,11 +1610,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Override
 	public boolean canDeleteChildren(Session session, String absPath) {
 		try {
-			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
-
-			return accessControlManager.hasPrivileges(absPath, new Privilege[]{
-						accessControlManager.privilegeFromName(Privilege.JCR_REMOVE_CHILD_NODES)
-					});
+			return hasSessionPrivilege(session, absPath, Privilege.JCR_REMOVE_CHILD_NODES);
 		} catch (RepositoryException e) {
 			return false;
 		}
@@ -768,12 +1630,9 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Override
 	public boolean canDelete(Session session, String absPath) {
 		try {
-			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
-
 			String parentPath = absPath.substring(0, absPath.lastIndexOf('/'));
-			boolean canDelete = accessControlManager.hasPrivileges(absPath, new Privilege[]{
-						accessControlManager.privilegeFromName(Privilege.JCR_REMOVE_NODE)
-					}) && canDeleteChildren(session, parentPath);
+			boolean canDelete = hasSessionPrivilege(session, absPath, Privilege.JCR_REMOVE_NODE)
+					&& canDeleteChildren(session, parentPath);
 			return canDelete;
 		} catch (RepositoryException e) {
 			return false;
@@ -794,10 +1653,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Override
 	public boolean canModifyProperties(Session session, String absPath) {
 		try {
-			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
-			return accessControlManager.hasPrivileges(absPath, new Privilege[]{
-						accessControlManager.privilegeFromName(Privilege.JCR_MODIFY_PROPERTIES)
-					});
+			return hasSessionPrivilege(session, absPath, Privilege.JCR_MODIFY_PROPERTIES);
 		} catch (RepositoryException e) {
 			return false;
 		}
@@ -817,10 +1673,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Override
 	public boolean canReadAccessControl(Session session, String absPath) {
 		try {
-			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
-			return accessControlManager.hasPrivileges(absPath, new Privilege[]{
-						accessControlManager.privilegeFromName(Privilege.JCR_READ_ACCESS_CONTROL)
-					});
+			return hasSessionPrivilege(session, absPath, Privilege.JCR_READ_ACCESS_CONTROL);
 		} catch (RepositoryException e) {
 			return false;
 		}
@@ -840,10 +1693,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	@Override
 	public boolean canModifyAccessControl(Session session, String absPath) {
 		try {
-			AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
-			return accessControlManager.hasPrivileges(absPath, new Privilege[]{
-						accessControlManager.privilegeFromName(Privilege.JCR_MODIFY_ACCESS_CONTROL)
-					});
+			return hasSessionPrivilege(session, absPath, Privilege.JCR_MODIFY_ACCESS_CONTROL);
 		} catch (RepositoryException e) {
 			return false;
 		}
@@ -898,6 +1748,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	/** {@inheritDoc} */
 	@Override
 	public void setAclByName(Session session, String principalName, String path, AccessRights privileges) throws InternalException, PrincipalNotExistsException {
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Principal principal = null;
@@ -969,6 +1820,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception", ex);
 		} finally {
+			SecurityFlightRecorder.commit(event, "setAclByName", principalName, path, null);
 		}
 
 	}
@@ -978,6 +1830,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 	public AccessRights getAclByName(Session session, String principalId, String absPath) throws InternalException {
 		AccessRights rights = new AccessRightsImpl();
 
+		Object event = SecurityFlightRecorder.begin();
 		try {
 			if (principalId != null && principalId.length() > 0) {
 				AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
@@ -991,13 +1844,13 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 								if (isAllow) {
 									Privilege[] privs = ace.getPrivileges();
 									for (int i = 0; i < privs.length; i++) {
-										rights.getGranted().add(new SerializablePrivilege(privs[i]));
+										rights.getGranted().add(SerializablePrivilege.fromPrivilege(privs[i]));
 
 									}
 								} else {
 									Privilege[] privs = ace.getPrivileges();
 									for (int i = 0; i < privs.length; i++) {
-										rights.getDenied().add(new SerializablePrivilege(privs[i]));
+										rights.getDenied().add(SerializablePrivilege.fromPrivilege(privs[i]));
 
 									}
 								}
@@ -1009,6 +1862,7 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception", ex);
 		} finally {
+			SecurityFlightRecorder.commit(event, "getAclByName", principalId, absPath, null);
 		}
 
 		return rights;
@@ -1028,12 +1882,22 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 						+ principal);
 			}
 			Authorizable group = userManager.getAuthorizable(groupName);
+			if (group == null) {
+				throw new PrincipalNotExistsException(
+						"A principal does not exist with the requested name: "
+						+ groupName);
+			}
 			if (!group.isGroup()) {
 				throw new PrincipalIsNotGroupException("Principal is not group: " + groupName);
 			}
 			
 			Group grp = (Group)group;
-			return grp.addMember(authorizable);
+			SecurityWorkspaceSession securitySession = new SecurityWorkspaceSession(repository, session);
+			try {
+				return memberShards.getTargetGroup(session, securitySession, userManager, grp, authorizable).addMember(authorizable);
+			} finally {
+				securitySession.close();
+			}
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception", ex);
 		} catch (IllegalArgumentException ex) {
@@ -1056,12 +1920,17 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 						+ principal);
 			}
 			Authorizable group = userManager.getAuthorizable(groupName);
+			if (group == null) {
+				throw new PrincipalNotExistsException(
+						"A principal does not exist with the requested name: "
+						+ groupName);
+			}
 			if (!group.isGroup()) {
 				throw new PrincipalIsNotGroupException("Principal is not group: " + groupName);
 			}
 			
 			Group grp = (Group)group;
-			return grp.removeMember(authorizable);
+			return memberShards.removeMember(userManager, grp, authorizable);
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception", ex);
 		} catch (IllegalArgumentException ex) {
@@ -1070,8 +1939,253 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		}
 		
 	}
+
+	/** {@inheritDoc} */
+	@Override
+	public MembershipDelta setGroupMembers(Session session, String groupName, Collection<String> members) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException {
+		MembershipDelta delta = new MembershipDelta(groupName);
+		SecurityWorkspaceSession securitySession = new SecurityWorkspaceSession(repository, session);
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			Group group = getGroup(session, groupName);
+
+			Set<String> wanted = new LinkedHashSet<String>(members);
+			// The members of the shards are removed from the shard they are declared in
+			Map<Authorizable, Group> toRemove = new LinkedHashMap<Authorizable, Group>();
+			int unchanged = 0;
+			for (Map.Entry<Authorizable, Group> entry : MemberShards.getDeclaredMembers(group).entrySet()) {
+				if (wanted.remove(entry.getKey().getID())) {
+					unchanged++;
+				} else {
+					toRemove.put(entry.getKey(), entry.getValue());
+				}
+			}
+			delta.setUnchanged(unchanged);
+
+			// What is left in wanted has to be added
+			AuthorizableLookupResult lookup = getAuthorizablesByNames(session, wanted);
+			for (String name : lookup.getMissing()) {
+				delta.addMissing(name);
+			}
+			for (Map.Entry<Authorizable, Group> entry : toRemove.entrySet()) {
+				// Clears both places, a member may be declared in the group and in its shard
+				if (memberShards.removeMember(userManager, group, entry.getKey())) {
+					delta.addRemoved(entry.getKey().getID());
+				}
+			}
+			for (Map.Entry<String, Authorizable> entry : lookup.getFound().entrySet()) {
+				if (memberShards.getTargetGroup(session, securitySession, userManager, group, entry.getValue()).addMember(entry.getValue())) {
+					delta.addAdded(entry.getKey());
+				} else {
+					delta.addRejected(entry.getKey());
+				}
+			}
+			if (delta.isChanged()) {
+				session.save();
+			}
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		} finally {
+			securitySession.close();
+		}
+		return delta;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public MembershipChangeResult addPrincipalsToGroup(Session session, String groupName, Collection<String> principals) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException {
+		return changeMembers(session, groupName, principals, true);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public MembershipChangeResult removePrincipalsFromGroup(Session session, String groupName, Collection<String> principals) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException {
+		return changeMembers(session, groupName, principals, false);
+	}
+
+	/**
+	 * Adds or removes the principals in chunks of membershipBatchSize. When the save of a chunk
+	 * fails, its changes are discarded and reported as failed, the next chunks are still applied.
+	 */
+	private MembershipChangeResult changeMembers(Session session, String groupName, Collection<String> principals, boolean add) throws InternalException, GroupNotExistsException, PrincipalIsNotGroupException {
+		MembershipChangeResult result = new MembershipChangeResult(groupName);
+		SecurityWorkspaceSession securitySession = new SecurityWorkspaceSession(repository, session);
+		try {
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			Group group = getGroup(session, groupName);
+			Iterator<String> iter = new LinkedHashSet<String>(principals).iterator();
+			List<String> chunk = new ArrayList<String>(membershipBatchSize);
+			List<String> changed = new ArrayList<String>(membershipBatchSize);
+			while (iter.hasNext()) {
+				chunk.clear();
+				changed.clear();
+				while (iter.hasNext() && chunk.size() < membershipBatchSize) {
+					chunk.add(iter.next());
+				}
+				AuthorizableLookupResult lookup = getAuthorizablesByNames(session, chunk);
+				for (String name : chunk) {
+					Authorizable authorizable = lookup.get(name);
+					if (authorizable == null) {
+						result.setOutcome(name, MembershipChangeResult.Outcome.NOT_FOUND);
+					} else if (add ? memberShards.getTargetGroup(session, securitySession, userManager, group, authorizable).addMember(authorizable)
+							: memberShards.removeMember(userManager, group, authorizable)) {
+						result.setOutcome(name, add ? MembershipChangeResult.Outcome.ADDED : MembershipChangeResult.Outcome.REMOVED);
+						changed.add(name);
+					} else {
+						result.setOutcome(name, MembershipChangeResult.Outcome.UNCHANGED);
+					}
+				}
+				if (!changed.isEmpty()) {
+					try {
+						session.save();
+						result.addSave();
+					} catch (RepositoryException ex) {
+						log.warn("Could not save the membership changes of group " + groupName, ex);
+						session.refresh(false);
+						for (String name : changed) {
+							result.setOutcome(name, MembershipChangeResult.Outcome.FAILED);
+						}
+						// The group node was reverted, it has to be read again
+						group = getGroup(session, groupName);
+					}
+				}
+			}
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		} finally {
+			securitySession.close();
+		}
+		return result;
+	}
+
+	private Group getGroup(Session session, String groupName) throws RepositoryException, GroupNotExistsException, PrincipalIsNotGroupException {
+		Authorizable authorizable = AccessControlUtil.getUserManager(session).getAuthorizable(groupName);
+		if (authorizable == null) {
+			throw new GroupNotExistsException("Group does not exist: " + groupName);
+		}
+		if (!authorizable.isGroup()) {
+			throw new PrincipalIsNotGroupException("Principal is not group: " + groupName);
+		}
+		return (Group) authorizable;
+	}
 	
 
+	/** {@inheritDoc} */
+	@Override
+	public <T> T doWithAdministrativeSession(AdministrativeSessionCallback<T> callback) throws SecurityManagerException, InternalException {
+		Session session = borrowSession();
+		try {
+			return callback.doInSession(session);
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<String> getDeclaredMemberOfIdsByName(String principal) throws PrincipalNotExistsException, InternalException {
+		Session session = borrowSession();
+		try {
+			return getIds(getDeclaredMemberOfByName(session, principal));
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<String> getEffectiveMemberOfIdsByName(String principal) throws PrincipalNotExistsException, InternalException {
+		Session session = borrowSession();
+		try {
+			return getIds(getEffectiveMemberOfByName(session, principal));
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<String> getDeclaredMemberIdsByName(String groupName) throws InternalException, PrincipalIsNotGroupException, GroupNotExistsException {
+		Session session = borrowSession();
+		try {
+			return getIds(getDeclaredMembersByName(session, groupName));
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<String> getEffectiveMemberIdsByName(String groupName) throws InternalException, PrincipalIsNotGroupException, GroupNotExistsException {
+		Session session = borrowSession();
+		try {
+			return getIds(getEffectiveMembersByName(session, groupName));
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/**
+	 * The IDs of the authorizables, read before their session is released
+	 */
+	private static List<String> getIds(List<? extends Authorizable> authorizables) throws InternalException {
+		List<String> ret = new ArrayList<String>(authorizables.size());
+		try {
+			for (Authorizable authorizable : authorizables) {
+				ret.add(authorizable.getID());
+			}
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String, GenericValue> getPrincipalPropertiesByName(String principal) throws PrincipalNotExistsException, InternalException {
+		Session session = borrowSession();
+		try {
+			return getPrincipalPropertiesByName(session, principal);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String, GenericValue> getPrincipalPropertiesByName(String principal, Collection<String> propertyNames) throws PrincipalNotExistsException, InternalException {
+		Session session = borrowSession();
+		try {
+			return getPrincipalPropertiesByName(session, principal, propertyNames);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PrincipalPropertyTable getPrincipalPropertyTable(Collection<String> principals, Collection<String> propertyNames) throws InternalException {
+		Session session = borrowSession();
+		try {
+			return getPrincipalPropertyTable(session, principals, propertyNames);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public AccessRights getAclByName(String principalId, String absPath) throws InternalException {
+		Session session = borrowSession();
+		try {
+			return getAclByName(session, principalId, absPath);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
 	@Override
 	public void createUserHome(Session session, String userName) throws PrincipalIsNotUserException, InternalException, PrincipalNotExistsException {
 		createUserHome(session, userName, null);
@@ -1082,53 +2196,424 @@ public class SecurityManagerServiceImpl implements SecurityManagerService {
 		try {
 			UserManager userManager = AccessControlUtil.getUserManager(session);
 			Authorizable authorizable = userManager.getAuthorizable(userName);
+			if (authorizable == null) {
+				throw new PrincipalNotExistsException("Principal does not exist: " + userName);
+			}
 			if (authorizable.isGroup()) {
 				throw new PrincipalIsNotUserException("Principal is not user: " + userName);
 			}
 			
-			Node rootNode = session.getRootNode();
-			if (StringUtils.isNotBlank(parentPath)) {
-				rootNode = rootNode.getNode(parentPath);
+			Node home = getHomeNode(session, parentPath);
+			addUserHome(session, AccessControlUtil.getAccessControlManager(session), home, authorizable, getHomePrivileges(session));
+			if (session.hasPendingChanges()) {
+				session.save();
 			}
 			
-			Node home = null;
-			
-			// If home does not exists, we create it and setting access rights
-			if (!rootNode.hasNode("home")) {
-				// Create home
-				home = rootNode.addNode("home");
-
-				// Access rights (Read/Write disabled)
-				AccessRights rights = new AccessRightsImpl();
-				rights.getDenied().add(new SerializablePrivilege(SerializablePrivilege.JCR_ALL));
-				setAclByName(session, "everyone", home.getPath(), rights);
-			} else {
-				home = rootNode.getNode("home");
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		} catch (IllegalArgumentException ex) {
+			throw new InternalException(ex);
+		} finally {
+		}
+		
+	}
+
+	/**
+	 * If home/user does not exists, we create it and setting access rights. The session is not saved.
+	 *
+	 * @param The session
+	 * @param The access control manager of the session
+	 * @param The home folder
+	 * @param The user
+	 * @param The privileges granted to the user on the home (see {@link #getHomePrivileges(Session)})
+	 * @return true if the home is created, false if it's already exists
+	 */
+	private boolean addUserHome(Session session, AccessControlManager accessControlManager, Node home, Authorizable user, Privilege[] privileges) throws RepositoryException {
+		String userName = user.getID();
+		Node shard = getShardNode(home, userName);
+		if (shard.hasNode(userName)) {
+			return false;
+		}
+		Node userNode = shard.addNode(userName);
+
+		// Access rights (Read/Write enabled). The node is new, so it has no ACL yet
+		String path = userNode.getPath();
+		AccessControlList acl = null;
+		AccessControlPolicyIterator applicablePolicies = accessControlManager.getApplicablePolicies(path);
+		while (applicablePolicies.hasNext()) {
+			AccessControlPolicy policy = applicablePolicies.nextAccessControlPolicy();
+			if (policy instanceof AccessControlList) {
+				acl = (AccessControlList) policy;
+				break;
 			}
-			
-			// If home/user does not exists, we create it and setting access rights
-			Node userNode = null;
-			if (!home.hasNode(userName)) {
-				userNode = home.addNode(userName);
-
-				// Access rights (Read/Write enabled)
-				AccessRights rights = new AccessRightsImpl();
-				rights.getGranted().add(new SerializablePrivilege(SerializablePrivilege.JCR_ALL));
-				setAclByName(session, userName, userNode.getPath(), rights);
-			} else {
-				userNode = home.getNode(userName);
+		}
+		if (acl == null) {
+			throw new RepositoryException("Could not obtain ACL for resource " + path);
+		}
+		if (!AccessControlUtil.addEntry(acl, user.getPrincipal(), privileges, true)) {
+			throw new RepositoryException("Could not set granted rights for principal: " + userName);
+		}
+		accessControlManager.setPolicy(path, acl);
+		return true;
+	}
+
+	/**
+	 * The privileges granted to the users on their home
+	 */
+	private static Privilege[] getHomePrivileges(Session session) throws RepositoryException {
+		return new Privilege[]{AccessControlUtil.getAccessControlManager(session).privilegeFromName(Privilege.JCR_ALL)};
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public UserHomeProvisioningResult createUserHomes(Collection<String> userNames, final String parentPath) throws InternalException {
+		long start = System.currentTimeMillis();
+		final UserHomeProvisioningResult result = new UserHomeProvisioningResult(userNames.size());
+
+		// The home folder and the shard folders are created by one session, before the parallel
+		// sessions start, so the parallel sessions only add the homes of different users
+		Set<String> names = new TreeSet<String>(userNames);
+		Session session = null;
+		try {
+			session = repository.loginAdministrative(null);
+			Node home = getHomeNode(session, parentPath);
+			if (userHomeShardDepth > 0) {
+				// Shard folder path - the error if it clashes with a user home, null if it is usable
+				Map<String, String> shards = new HashMap<String, String>();
+				for (Iterator<String> iter = names.iterator(); iter.hasNext(); ) {
+					String userName = iter.next();
+					String homePath = getUserHomePath(userName, parentPath);
+					String shardPath = homePath.substring(0, homePath.lastIndexOf('/'));
+					if (!shards.containsKey(shardPath)) {
+						try {
+							getShardNode(home, userName);
+							shards.put(shardPath, null);
+						} catch (ConstraintViolationException ex) {
+							shards.put(shardPath, ex.getMessage());
+						}
+					}
+					String error = shards.get(shardPath);
+					if (error != null) {
+						result.addFailure(userName, error);
+						iter.remove();
+					}
+				}
 			}
 			if (session.hasPendingChanges()) {
 				session.save();
 			}
-			
 		} catch (RepositoryException ex) {
 			throw new InternalException("Repository exception", ex);
-		} catch (IllegalArgumentException ex) {
+		} catch (PrincipalNotExistsException ex) {
 			throw new InternalException(ex);
 		} finally {
+			if (session != null) {
+				session.logout();
+			}
+		}
+
+		// Sorted slices, so the sessions work on mostly different shard folders
+		List<String> sorted = new ArrayList<String>(names);
+		int threads = Math.max(1, Math.min(userHomeProvisioningThreads, sorted.size() / userHomeProvisioningBatchSize + 1));
+		int sliceSize = Math.max(1, (sorted.size() + threads - 1) / threads);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < sorted.size(); i += sliceSize) {
+				final List<String> slice = sorted.subList(i, Math.min(sorted.size(), i + sliceSize));
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						provisionUserHomes(slice, parentPath, result);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InternalException("User home provisioning interrupted", ex);
+		} catch (ExecutionException ex) {
+			throw new InternalException("User home provisioning failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		result.setElapsedMillis(System.currentTimeMillis() - start);
+		log.info("User home provisioning finished: {}", result);
+		return result;
+	}
+
+	/**
+	 * Creates the user homes of the slice with an own administrative session.
+	 * The session is saved after every batch, conflicting batches are retried.
+	 */
+	private void provisionUserHomes(List<String> userNames, String parentPath, UserHomeProvisioningResult result) {
+		Session session = null;
+		try {
+			session = repository.loginAdministrative(null);
+			UserManager userManager = AccessControlUtil.getUserManager(session);
+			for (int i = 0; i < userNames.size(); i += userHomeProvisioningBatchSize) {
+				List<String> batch = userNames.subList(i, Math.min(userNames.size(), i + userHomeProvisioningBatchSize));
+				for (int attempt = 0; ; attempt++) {
+					try {
+						provisionUserHomeBatch(session, userManager, batch, parentPath, result);
+						break;
+					} catch (InvalidItemStateException ex) {
+						session.refresh(false);
+						if (!retryConflict(batch, attempt, ex, result)) break;
+					} catch (ItemExistsException ex) {
+						session.refresh(false);
+						if (!retryConflict(batch, attempt, ex, result)) break;
+					} catch (Exception ex) {
+						session.refresh(false);
+						for (String userName : batch) {
+							result.addFailure(userName, ex.getMessage());
+						}
+						break;
+					}
+				}
+			}
+		} catch (RepositoryException ex) {
+			log.error("User home provisioning failed", ex);
+			for (String userName : userNames) {
+				result.addFailure(userName, ex.getMessage());
+			}
+		} finally {
+			if (session != null) {
+				session.logout();
+			}
+		}
+	}
+
+	private boolean retryConflict(List<String> batch, int attempt, RepositoryException ex, UserHomeProvisioningResult result) {
+		result.addConflict();
+		if (attempt < userHomeProvisioningRetries) {
+			log.debug("User home provisioning conflict, retrying batch", ex);
+			return true;
+		}
+		for (String userName : batch) {
+			result.addFailure(userName, ex.getMessage());
+		}
+		return false;
+	}
+
+	private void provisionUserHomeBatch(Session session, UserManager userManager, List<String> batch, String parentPath, UserHomeProvisioningResult result) throws RepositoryException {
+		Node home = session.getNode(getHomePath(parentPath));
+		AccessControlManager accessControlManager = AccessControlUtil.getAccessControlManager(session);
+		Privilege[] privileges = getHomePrivileges(session);
+		int created = 0;
+		int existing = 0;
+		for (String userName : batch) {
+			Authorizable authorizable = userManager.getAuthorizable(userName);
+			if (authorizable == null) {
+				result.addFailure(userName, "Principal does not exist: " + userName);
+			} else if (authorizable.isGroup()) {
+				result.addFailure(userName, "Principal is not user: " + userName);
+			} else if (addUserHome(session, accessControlManager, home, authorizable, privileges)) {
+				created++;
+			} else {
+				existing++;
+			}
+		}
+		if (session.hasPendingChanges()) {
+			session.save();
+		}
+		result.addCreated(created);
+		result.addExisting(existing);
+	}
+
+	/**
+	 * Returns the home node under the given parent path. If home does not exists,
+	 * it's created with access rights (Read/Write disabled for everyone)
+	 */
+	private Node getHomeNode(Session session, String parentPath) throws RepositoryException, InternalException, PrincipalNotExistsException {
+		Node rootNode = session.getRootNode();
+		String relPath = getRelativeParentPath(parentPath);
+		if (relPath != null) {
+			rootNode = rootNode.getNode(relPath);
+		}
+
+		if (rootNode.hasNode(HOME_NODE)) {
+			return rootNode.getNode(HOME_NODE);
+		}
+		// Create home
+		Node home = rootNode.addNode(HOME_NODE);
+
+		// Access rights (Read/Write disabled)
+		AccessRights rights = new AccessRightsImpl();
+		rights.getDenied().add(new SerializablePrivilege(SerializablePrivilege.JCR_ALL));
+		setAclByName(session, "everyone", home.getPath(), rights);
+		return home;
+	}
+
+	/**
+	 * Returns the parent node of the user's home in the home folder, creates the missing shard folders.
+	 * The shard folders inherit the access rights of the home folder. A node having an access control
+	 * policy is a user home (e.g. of a user whose ID starts with the shard prefix), it is never used as
+	 * a shard folder.
+	 */
+	private Node getShardNode(Node home, String userName) throws RepositoryException {
+		Node shard = home;
+		for (int i = 1; i <= userHomeShardDepth; i++) {
+			String name = getShardName(userName, i);
+			if (shard.hasNode(name)) {
+				shard = shard.getNode(name);
+				if (shard.hasNode(REP_POLICY)) {
+					throw new ConstraintViolationException("User home is in the place of a shard folder: " + shard.getPath());
+				}
+			} else {
+				shard = shard.addNode(name);
+			}
+		}
+		return shard;
+	}
+
+	private static String getShardName(String userName, int level) {
+		return SHARD_FOLDER_PREFIX + Text.escapeIllegalJcrChars(userName.substring(0, Math.min(level, userName.length())));
+	}
+
+	private static String getRelativeParentPath(String parentPath) {
+		if (StringUtils.isBlank(parentPath)) {
+			return null;
+		}
+		String relPath = StringUtils.strip(parentPath, "/");
+		return relPath.length() == 0 ? null : relPath;
+	}
+
+	private static String getHomePath(String parentPath) {
+		String relPath = getRelativeParentPath(parentPath);
+		return relPath == null ? "/" + HOME_NODE : "/" + relPath + "/" + HOME_NODE;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getUserHomePath(String userName) {
+		return getUserHomePath(userName, null);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getUserHomePath(String userName, String parentPath) {
+		StringBuilder path = new StringBuilder(getHomePath(parentPath)).append('/');
+		for (int i = 1; i <= userHomeShardDepth; i++) {
+			path.append(getShardName(userName, i)).append('/');
+		}
+		return path.append(userName).toString();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void migrateUserHomes(final String parentPath) throws InternalException {
+		ExecutorService executor = backgroundExecutor;
+		if (executor == null) {
+			throw new InternalException("Security manager is not active");
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Session session = null;
+				try {
+					session = repository.loginAdministrative(null);
+					int moved = doMigrateUserHomes(session, parentPath);
+					log.info("User home migration finished on path {}, {} homes moved", parentPath == null ? "/" : parentPath, moved);
+				} catch (Exception e) {
+					log.error("User home migration failed", e);
+				} finally {
+					if (session != null) {
+						session.logout();
+					}
+				}
+			}
+		});
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long exportAuthorizables(Session session, WritableByteChannel channel) throws InternalException {
+		Object event = SecurityFlightRecorder.begin();
+		try {
+			return new AuthorizableExporter(channel, exportPageSize).export(session);
+		} catch (RepositoryException ex) {
+			throw new InternalException("Repository exception", ex);
+		} catch (IOException ex) {
+			throw new InternalException("Could not write the export", ex);
+		} finally {
+			SecurityFlightRecorder.commit(event, "exportAuthorizables", null, null, null);
 		}
-		
 	}
-}
 
+	/** {@inheritDoc} */
+	@Override
+	public long exportAuthorizables(WritableByteChannel channel) throws InternalException {
+		Session session = borrowSession();
+		try {
+			return exportAuthorizables(session, channel);
+		} finally {
+			releaseSession(session);
+		}
+	}
+
+	/**
+	 * Moves the user homes which are not in the place defined by the actual layout.
+	 * The homes are recognized by their access control policy (the shard folders does not have one).
+	 * The home folder is traversed once, depth first; the session is saved after every chunk of moves.
+	 * The child iterators work on the children at the time of the call, so the moves do not disturb
+	 * the traversal, and the homes moved into the visited shard folders are already in place.
+	 */
+	private int doMigrateUserHomes(Session session, String parentPath) throws RepositoryException, InternalException, PrincipalNotExistsException {
+		Node home = getHomeNode(session, parentPath);
+		if (session.hasPendingChanges()) {
+			session.save();
+		}
+		int moved = 0;
+		int pending = 0;
+		LinkedList<NodeIterator> folders = new LinkedList<NodeIterator>();
+		folders.addFirst(home.getNodes());
+		while (!folders.isEmpty() && !Thread.currentThread().isInterrupted()) {
+			NodeIterator iter = folders.getFirst();
+			if (!iter.hasNext()) {
+				folders.removeFirst();
+				continue;
+			}
+			Node node = iter.nextNode();
+			if (node.getName().equals(REP_POLICY)) {
+				continue;
+			}
+			if (!node.hasNode(REP_POLICY)) {
+				// Shard folder of the actual or a former layout
+				folders.addFirst(node.getNodes());
+				continue;
+			}
+			String userName = node.getName();
+			String targetPath = getUserHomePath(userName, parentPath);
+			if (node.getPath().equals(targetPath)) {
+				continue;
+			}
+			if (session.nodeExists(targetPath) || targetPath.startsWith(node.getPath() + "/")) {
+				log.warn("Cannot move user home {} to {}", node.getPath(), targetPath);
+				continue;
+			}
+			Node shard;
+			try {
+				shard = getShardNode(home, userName);
+			} catch (ConstraintViolationException ex) {
+				log.warn("Cannot move user home " + node.getPath() + " to " + targetPath, ex);
+				continue;
+			}
+			session.move(node.getPath(), shard.getPath() + "/" + userName);
+			moved++;
+			if (++pending >= userHomeMigrationChunkSize) {
+				session.save();
+				pending = 0;
+				log.info("User home migration: {} homes moved", moved);
+			}
+		}
+		if (session.hasPendingChanges()) {
+			session.save();
+		}
+		return moved;
+	}
+}
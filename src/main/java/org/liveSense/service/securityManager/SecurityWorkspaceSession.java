@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.jcr.api.SlingRepository;
+
+/**
+ * Session of the workspace the users and groups are stored in, which is not the workspace of
+ * the caller's session when the users are kept in a separate security workspace. The caller's
+ * session is used if it is on the security workspace (so its unsaved changes are seen),
+ * otherwise an administrative session is logged in there on the first use and logged out by
+ * {@link #close()}. Not thread safe, used for one call of the service.
+ */
+final class SecurityWorkspaceSession {
+
+	private final SlingRepository repository;
+	private final Session session;
+	private Session securitySession;
+
+	SecurityWorkspaceSession(SlingRepository repository, Session session) {
+		this.repository = repository;
+		this.session = session;
+	}
+
+	Session get() throws RepositoryException {
+		if (UserResourceChangeListener.SECURITY_WORKSPACE.equals(session.getWorkspace().getName())) {
+			return session;
+		}
+		if (securitySession == null) {
+			securitySession = repository.loginAdministrative(UserResourceChangeListener.SECURITY_WORKSPACE);
+		}
+		return securitySession;
+	}
+
+	void close() {
+		if (securitySession != null) {
+			securitySession.logout();
+			securitySession = null;
+		}
+	}
+}
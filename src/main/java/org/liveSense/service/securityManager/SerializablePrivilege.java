@@ -17,8 +17,13 @@
 
 package org.liveSense.service.securityManager;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.jcr.security.Privilege;
 
 /**
@@ -47,8 +52,99 @@ public class SerializablePrivilege implements Serializable {
 	String name;
 	boolean abstract_;
 	boolean aggregate;
-    ArrayList<SerializablePrivilege> declaredAggregatePrivileges = new ArrayList<SerializablePrivilege>();
-	ArrayList<SerializablePrivilege> aggregatePrivileges = new ArrayList<SerializablePrivilege>();
+    ArrayList<SerializablePrivilege> declaredAggregatePrivileges;
+	ArrayList<SerializablePrivilege> aggregatePrivileges;
+
+	/**
+	 * Privilege definitions by name, the aggregated privileges of the instances
+	 * created by {@link #fromPrivilege(Privilege)} are taken from here. The definitions
+	 * are never handed out, so they can not be modified.
+	 */
+	private static final ConcurrentMap<String, SerializablePrivilege> definitions = new ConcurrentHashMap<String, SerializablePrivilege>();
+
+	/**
+	 * The shared definition of an instance created by {@link #fromPrivilege(Privilege)} until its
+	 * aggregate lists are copied (see {@link #copyDefinition()}), null afterwards
+	 */
+	private transient SerializablePrivilege definition;
+
+	/**
+	 * Creates a SerializablePrivilege without walking the aggregate tree of the privilege on every call.
+	 * The aggregate lists are copied from the shared definition when they are first accessed, so
+	 * every instance reachable from the returned one is its own.
+	 */
+	static SerializablePrivilege fromPrivilege(Privilege privilege) {
+		return fromDefinition(getDefinition(privilege));
+	}
+
+	private static SerializablePrivilege fromDefinition(SerializablePrivilege definition) {
+		SerializablePrivilege ret = new SerializablePrivilege(definition.name, null, null);
+		ret.abstract_ = definition.abstract_;
+		ret.definition = definition;
+		return ret;
+	}
+
+	/**
+	 * Replaces the shared definition by own copies of its aggregate lists
+	 */
+	private void copyDefinition() {
+		SerializablePrivilege def = definition;
+		if (def != null) {
+			declaredAggregatePrivileges = copyDefinitions(def.declaredAggregatePrivileges);
+			aggregatePrivileges = copyDefinitions(def.aggregatePrivileges);
+			definition = null;
+		}
+	}
+
+	private static ArrayList<SerializablePrivilege> copyDefinitions(List<SerializablePrivilege> definitions) {
+		ArrayList<SerializablePrivilege> ret = new ArrayList<SerializablePrivilege>(definitions.size());
+		for (int i = 0; i < definitions.size(); i++) {
+			ret.add(fromDefinition(definitions.get(i)));
+		}
+		return ret;
+	}
+
+	/**
+	 * The declared aggregate privileges for read only use, without copying the shared definition
+	 */
+	List<SerializablePrivilege> readDeclaredAggregatePrivileges() {
+		SerializablePrivilege def = definition;
+		return def != null ? def.declaredAggregatePrivileges : declaredAggregatePrivileges;
+	}
+
+	/**
+	 * The aggregate privileges for read only use, without copying the shared definition
+	 */
+	List<SerializablePrivilege> readAggregatePrivileges() {
+		SerializablePrivilege def = definition;
+		return def != null ? def.aggregatePrivileges : aggregatePrivileges;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		copyDefinition();
+		out.defaultWriteObject();
+	}
+
+	private static SerializablePrivilege getDefinition(Privilege privilege) {
+		SerializablePrivilege definition = definitions.get(privilege.getName());
+		if (definition == null) {
+			Privilege[] declared = privilege.getDeclaredAggregatePrivileges();
+			Privilege[] aggregate = privilege.getAggregatePrivileges();
+			definition = new SerializablePrivilege(privilege.getName(), new ArrayList<SerializablePrivilege>(declared.length), new ArrayList<SerializablePrivilege>(aggregate.length));
+			definition.abstract_ = privilege.isAbstract();
+			for (int i = 0; i < declared.length; i++) {
+				definition.declaredAggregatePrivileges.add(getDefinition(declared[i]));
+			}
+			for (int i = 0; i < aggregate.length; i++) {
+				definition.aggregatePrivileges.add(getDefinition(aggregate[i]));
+			}
+			SerializablePrivilege existing = definitions.putIfAbsent(definition.name, definition);
+			if (existing != null) {
+				definition = existing;
+			}
+		}
+		return definition;
+	}
 
 	public static SerializablePrivilege[] fromPrivilegeArray(Privilege[] privileges) {
 		SerializablePrivilege[] ret = new SerializablePrivilege[privileges.length];
@@ -59,11 +155,17 @@ public class SerializablePrivilege implements Serializable {
 	}
 
 	public SerializablePrivilege(String name) {
+		this(name, new ArrayList<SerializablePrivilege>(), new ArrayList<SerializablePrivilege>());
+	}
+
+	private SerializablePrivilege(String name, ArrayList<SerializablePrivilege> declaredAggregatePrivileges, ArrayList<SerializablePrivilege> aggregatePrivileges) {
 		this.name = name;
+		this.declaredAggregatePrivileges = declaredAggregatePrivileges;
+		this.aggregatePrivileges = aggregatePrivileges;
 	}
 
 	public SerializablePrivilege(Privilege privilege) {
-		this.name = privilege.getName();
+		this(privilege.getName());
 		this.abstract_ = privilege.isAbstract();
 
 		Privilege[] privs = privilege.getDeclaredAggregatePrivileges();
@@ -94,18 +196,22 @@ public class SerializablePrivilege implements Serializable {
 	}
 
 	public ArrayList<SerializablePrivilege> getAggregatePrivileges() {
+		copyDefinition();
 		return aggregatePrivileges;
 	}
 
 	public void setAggregatePrivileges(ArrayList<SerializablePrivilege> aggregatePrivileges) {
+		copyDefinition();
 		this.aggregatePrivileges = aggregatePrivileges;
 	}
 
 	public ArrayList<SerializablePrivilege> getDeclaredAggregatePrivileges() {
+		copyDefinition();
 		return declaredAggregatePrivileges;
 	}
 
 	public void setDeclaredAggregatePrivileges(ArrayList<SerializablePrivilege> declaredAggregatePrivileges) {
+		copyDefinition();
 		this.declaredAggregatePrivileges = declaredAggregatePrivileges;
 	}
 
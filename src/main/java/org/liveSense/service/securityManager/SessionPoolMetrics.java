@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+/**
+ * Metrics of the administrative session pool of the security manager.
+ *
+ * @see SecurityManagerService#getSessionPoolMetrics()
+ */
+public interface SessionPoolMetrics {
+
+	/**
+	 * Maximum number of the sessions
+	 */
+	int getMaxSessions();
+
+	/**
+	 * Number of the live (idle and borrowed) sessions
+	 */
+	int getLiveSessions();
+
+	/**
+	 * Number of the idle sessions
+	 */
+	int getIdleSessions();
+
+	/**
+	 * Number of the borrows
+	 */
+	long getBorrowCount();
+
+	/**
+	 * Number of the borrows had to wait for a session
+	 */
+	long getWaitCount();
+
+	/**
+	 * Number of the sessions discarded by the health check
+	 */
+	long getDiscardedCount();
+
+	/**
+	 * Average borrow latency in nanoseconds
+	 */
+	long getAverageBorrowNanos();
+
+	/**
+	 * Maximum borrow latency in nanoseconds
+	 */
+	long getMaxBorrowNanos();
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.liveSense.misc.jcrWrapper.GenericValue;
+import org.liveSense.service.securityManager.exceptions.GroupNotExistsException;
+import org.liveSense.service.securityManager.exceptions.InternalException;
+import org.liveSense.service.securityManager.exceptions.PrincipalIsNotGroupException;
+import org.liveSense.service.securityManager.exceptions.PrincipalIsNotUserException;
+import org.liveSense.service.securityManager.exceptions.PrincipalNotExistsException;
+import org.liveSense.service.securityManager.exceptions.UserNotExistsException;
+
+/**
+ * {@link SecurityContext} memoizing in plain hash maps. The maps are created on
+ * first use, no lock is taken, the context is garbage collected with the request.
+ */
+final class SessionSecurityContext implements SecurityContext {
+
+	private static final char ADD_CHILDREN = 'a';
+	private static final char DELETE_CHILDREN = 'c';
+	private static final char DELETE = 'd';
+	private static final char MODIFY_PROPERTIES = 'p';
+	private static final char READ_ACCESS_CONTROL = 'r';
+	private static final char MODIFY_ACCESS_CONTROL = 'm';
+
+	private final SecurityManagerService securityManager;
+	private final Session session;
+
+	private Map<String, Authorizable> authorizables;
+	private Map<String, User> users;
+	private Map<String, Group> groups;
+	private Map<String, List<Group>> declaredMemberOf;
+	private Map<String, List<Group>> effectiveMemberOf;
+	private Map<String, Map<String, GenericValue>> properties;
+	/** Operation character + path -> decision */
+	private Map<String, Boolean> privileges;
+
+	SessionSecurityContext(SecurityManagerService securityManager, Session session) {
+		this.securityManager = securityManager;
+		this.session = session;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Session getSession() {
+		return session;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Authorizable getAuthorizableByName(String principal) throws PrincipalNotExistsException, InternalException {
+		if (authorizables == null) {
+			authorizables = new HashMap<String, Authorizable>();
+		}
+		Authorizable ret = authorizables.get(principal);
+		if (ret == null) {
+			ret = securityManager.getAuthorizableByName(session, principal);
+			authorizables.put(principal, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public User getUserByName(String userName) throws UserNotExistsException, InternalException, PrincipalIsNotUserException {
+		if (users == null) {
+			users = new HashMap<String, User>();
+		}
+		User ret = users.get(userName);
+		if (ret == null) {
+			ret = securityManager.getUserByName(session, userName);
+			users.put(userName, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Group getGroupByName(String groupName) throws GroupNotExistsException, InternalException, PrincipalIsNotGroupException {
+		if (groups == null) {
+			groups = new HashMap<String, Group>();
+		}
+		Group ret = groups.get(groupName);
+		if (ret == null) {
+			ret = securityManager.getGroupByName(session, groupName);
+			groups.put(groupName, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<Group> getDeclaredMemberOfByName(String principal) throws PrincipalNotExistsException, InternalException {
+		if (declaredMemberOf == null) {
+			declaredMemberOf = new HashMap<String, List<Group>>();
+		}
+		List<Group> ret = declaredMemberOf.get(principal);
+		if (ret == null) {
+			ret = Collections.unmodifiableList(securityManager.getDeclaredMemberOfByName(session, principal));
+			declaredMemberOf.put(principal, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<Group> getEffectiveMemberOfByName(String principal) throws PrincipalNotExistsException, InternalException {
+		if (effectiveMemberOf == null) {
+			effectiveMemberOf = new HashMap<String, List<Group>>();
+		}
+		List<Group> ret = effectiveMemberOf.get(principal);
+		if (ret == null) {
+			ret = Collections.unmodifiableList(securityManager.getEffectiveMemberOfByName(session, principal));
+			effectiveMemberOf.put(principal, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String, GenericValue> getPrincipalPropertiesByName(String principal) throws PrincipalNotExistsException, InternalException {
+		if (properties == null) {
+			properties = new HashMap<String, Map<String, GenericValue>>();
+		}
+		Map<String, GenericValue> ret = properties.get(principal);
+		if (ret == null) {
+			ret = Collections.unmodifiableMap(securityManager.getPrincipalPropertiesByName(session, principal));
+			properties.put(principal, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean canAddChildren(String absPath) {
+		String key = ADD_CHILDREN + absPath;
+		Boolean ret = getPrivilege(key);
+		if (ret == null) {
+			ret = securityManager.canAddChildren(session, absPath);
+			privileges.put(key, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean canDeleteChildren(String absPath) {
+		String key = DELETE_CHILDREN + absPath;
+		Boolean ret = getPrivilege(key);
+		if (ret == null) {
+			ret = securityManager.canDeleteChildren(session, absPath);
+			privileges.put(key, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean canDelete(String absPath) {
+		String key = DELETE + absPath;
+		Boolean ret = getPrivilege(key);
+		if (ret == null) {
+			ret = securityManager.canDelete(session, absPath);
+			privileges.put(key, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean canModifyProperties(String absPath) {
+		String key = MODIFY_PROPERTIES + absPath;
+		Boolean ret = getPrivilege(key);
+		if (ret == null) {
+			ret = securityManager.canModifyProperties(session, absPath);
+			privileges.put(key, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean canReadAccessControl(String absPath) {
+		String key = READ_ACCESS_CONTROL + absPath;
+		Boolean ret = getPrivilege(key);
+		if (ret == null) {
+			ret = securityManager.canReadAccessControl(session, absPath);
+			privileges.put(key, ret);
+		}
+		return ret;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean canModifyAccessControl(String absPath) {
+		String key = MODIFY_ACCESS_CONTROL + absPath;
+		Boolean ret = getPrivilege(key);
+		if (ret == null) {
+			ret = securityManager.canModifyAccessControl(session, absPath);
+			privileges.put(key, ret);
+		}
+		return ret;
+	}
+
+	private Boolean getPrivilege(String key) {
+		if (privileges == null) {
+			privileges = new HashMap<String, Boolean>();
+		}
+		return privileges.get(key);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clear() {
+		authorizables = null;
+		users = null;
+		groups = null;
+		declaredMemberOf = null;
+		effectiveMemberOf = null;
+		properties = null;
+		privileges = null;
+	}
+}
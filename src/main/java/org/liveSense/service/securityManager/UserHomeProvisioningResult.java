@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Result of the bulk user home provisioning.
+ *
+ * @see SecurityManagerService#createUserHomes(java.util.Collection, String)
+ */
+public class UserHomeProvisioningResult implements Serializable {
+
+	private int requested;
+	private int created;
+	private int existing;
+	private int conflicts;
+	private long elapsedMillis;
+	private final Map<String, String> failures = new HashMap<String, String>();
+
+	public UserHomeProvisioningResult(int requested) {
+		this.requested = requested;
+	}
+
+	synchronized void addCreated(int count) {
+		created += count;
+	}
+
+	synchronized void addExisting(int count) {
+		existing += count;
+	}
+
+	synchronized void addConflict() {
+		conflicts++;
+	}
+
+	synchronized void addFailure(String userName, String message) {
+		failures.put(userName, message);
+	}
+
+	void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Number of the requested user homes
+	 */
+	public int getRequested() {
+		return requested;
+	}
+
+	/**
+	 * Number of the created user homes
+	 */
+	public synchronized int getCreated() {
+		return created;
+	}
+
+	/**
+	 * Number of the user homes already existed
+	 */
+	public synchronized int getExisting() {
+		return existing;
+	}
+
+	/**
+	 * Number of the save conflicts (retried batches)
+	 */
+	public synchronized int getConflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * The failed user names with the cause of the failure
+	 */
+	public synchronized Map<String, String> getFailures() {
+		return Collections.unmodifiableMap(new HashMap<String, String>(failures));
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Processed (created or existing) user homes per second
+	 */
+	public synchronized double getThroughput() {
+		return elapsedMillis == 0 ? 0 : (created + existing) * 1000.0 / elapsedMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "requested: " + requested + ", created: " + created + ", existing: " + existing
+				+ ", failed: " + failures.size() + ", conflicts: " + conflicts
+				+ ", elapsed: " + elapsedMillis + "ms, throughput: " + Math.round(getThroughput()) + "/s";
+	}
+}
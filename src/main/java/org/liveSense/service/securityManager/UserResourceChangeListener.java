@@ -21,6 +21,7 @@ package org.liveSense.service.securityManager;
  * @author Robert Csakany (robson@semmi.se)
  * @created Feb 13, 2010
  */
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Hashtable;
@@ -32,33 +33,71 @@ import javax.jcr.observation.Event;
 import javax.jcr.observation.EventIterator;
 import javax.jcr.observation.EventListener;
 import javax.jcr.observation.ObservationManager;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
+import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.jackrabbit.api.observation.JackrabbitEvent;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.event.jobs.JobUtil;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.EventAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Observe the users  for changes, and create a
- * user generation job when user are added/deleted.
+ * Observe the users and groups for changes, and create a
+ * user/group generation job when they are added/deleted or
+ * when the group memberships are changed.
+ *
+ * The changes (including the ACL changes) are also dispatched to
+ * the registered {@link SecurityChangeListener} services. The jobs are
+ * posted from the observation thread, the listeners are called through the
+ * bounded {@link SecurityChangeDispatcher}, which may drop changes for them
+ * but never the jobs.
+ *
+ * In a Jackrabbit cluster the changes of the other cluster nodes are
+ * dispatched to the {@link SecurityChangeListener}s too, so they can evict
+ * their cached data on every cluster node. The jobs are generated only on
+ * the cluster node where the change happened.
+ *
+ * The dispatching counters and the replication lag are published as
+ * {@link SecurityChangeMetricsMBean} service and MBean.
  */
-/*@Component(
+@Component(
 		label = "%userResourceChangeListener.name", 
 		description = "%userResourceChangeListener.description", 
 		immediate = true, 
 		metatype = false
-)*/
-public class UserResourceChangeListener {
+)
+@References({
+	@Reference(name="securityChangeListener", referenceInterface=SecurityChangeListener.class,
+			cardinality=ReferenceCardinality.OPTIONAL_MULTIPLE, policy=ReferencePolicy.DYNAMIC,
+			bind="bindSecurityChangeListener", unbind="unbindSecurityChangeListener")
+})
+public class UserResourceChangeListener implements SecurityChangeMetricsMBean {
 	private static final Logger log = LoggerFactory.getLogger(UserResourceChangeListener.class);
 
 	public static final String USER_GENERATE_TOPIC = "org/liveSense/user/generate";
 	public static final String USER_REMOVE_TOPIC = "org/liveSense/user/remove";
+	public static final String GROUP_GENERATE_TOPIC = "org/liveSense/group/generate";
+	public static final String GROUP_REMOVE_TOPIC = "org/liveSense/group/remove";
+	public static final String GROUP_MEMBERSHIP_TOPIC = "org/liveSense/group/membership";
+
+	/** Workspace of the users and groups (workspaceName of the Jackrabbit SecurityManager) */
+	public static final String SECURITY_WORKSPACE = "security";
+
+	public static final String AUTHORIZABLES_PATH = SecurityEventClassifier.AUTHORIZABLES_PATH;
+	public static final String USERS_PATH = SecurityEventClassifier.USERS_PATH;
+	public static final String GROUPS_PATH = SecurityEventClassifier.GROUPS_PATH;
 
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	private SlingRepository repository;
@@ -69,24 +108,100 @@ public class UserResourceChangeListener {
 
 	Session session;
 
-	class PathEventListener implements EventListener {
+	private final SecurityChangeDispatcher dispatcher = new SecurityChangeDispatcher();
+
+	private final JobEventSender jobEventSender = new JobEventSender();
+
+	static final String METRICS_MBEAN_NAME = "org.liveSense:type=SecurityManager,name=changes";
+
+	private ServiceRegistration metricsRegistration;
+	private ObjectName metricsMBeanName;
+
+	protected void bindSecurityChangeListener(SecurityChangeListener listener) {
+		dispatcher.addListener(listener);
+	}
+
+	protected void unbindSecurityChangeListener(SecurityChangeListener listener) {
+		dispatcher.removeListener(listener);
+	}
+
+	/**
+	 * Sends the job events of the authorizable changes. Called on the observation thread for
+	 * the local changes only, not through the dispatcher, so no job is dropped. The events
+	 * are posted, the observation thread does not wait for the event handlers.
+	 */
+	class JobEventSender implements SecurityChangeListener {
 
-		private void generateJobEvent(String userName) {
-			log.info("> Create user create event " + JobUtil.PROPERTY_JOB_TOPIC + " " + USER_GENERATE_TOPIC + " for " + userName);
+		private void sendJobEvent(String topic, String key, String value) {
+			if (log.isDebugEnabled()) {
+				log.debug("> Create job event {} {} for {}", new Object[]{JobUtil.PROPERTY_JOB_TOPIC, topic, value});
+			}
 			final Dictionary<String, Object> props = new Hashtable<String, Object>();
-			props.put(JobUtil.PROPERTY_JOB_TOPIC, USER_GENERATE_TOPIC);
-			props.put("userName", userName);
-			org.osgi.service.event.Event createUserJob = new org.osgi.service.event.Event(JobUtil.TOPIC_JOB, props);
-			eventAdmin.sendEvent(createUserJob);
+			props.put(JobUtil.PROPERTY_JOB_TOPIC, topic);
+			props.put(key, value);
+			org.osgi.service.event.Event job = new org.osgi.service.event.Event(JobUtil.TOPIC_JOB, props);
+			eventAdmin.postEvent(job);
 		}
 
-		private void removeJobEvent(String userName) {
-			log.info("> Create user remove event " + JobUtil.PROPERTY_JOB_TOPIC + " " + USER_REMOVE_TOPIC + " for "  + userName);
-			final Dictionary<String, Object> props = new Hashtable<String, Object>();
-			props.put(JobUtil.PROPERTY_JOB_TOPIC, USER_REMOVE_TOPIC);
-			props.put("userName", userName);
-			org.osgi.service.event.Event removeUserJob = new org.osgi.service.event.Event(JobUtil.TOPIC_JOB, props);
-			eventAdmin.sendEvent(removeUserJob);
+		@Override
+		public void userAdded(String userName) {
+			sendJobEvent(USER_GENERATE_TOPIC, "userName", userName);
+		}
+
+		@Override
+		public void userRemoved(String userName) {
+			sendJobEvent(USER_REMOVE_TOPIC, "userName", userName);
+		}
+
+		@Override
+		public void groupAdded(String groupName) {
+			sendJobEvent(GROUP_GENERATE_TOPIC, "groupName", groupName);
+		}
+
+		@Override
+		public void groupRemoved(String groupName) {
+			sendJobEvent(GROUP_REMOVE_TOPIC, "groupName", groupName);
+		}
+
+		@Override
+		public void membershipChanged(String groupName) {
+			sendJobEvent(GROUP_MEMBERSHIP_TOPIC, "groupName", groupName);
+		}
+
+		@Override
+		public void aclChanged(String path) {
+		}
+
+		@Override
+		public void changesDropped() {
+			// Not called, the job events are not sent through the dispatcher
+		}
+	}
+
+	class PathEventListener implements EventListener {
+
+		private final SecurityEventClassifier classifier = new SecurityEventClassifier();
+
+		/**
+		 * Handles one event. The registrations (see {@link UserResourceChangeListener#activate(ComponentContext)})
+		 * are narrowed to the events recognized by {@link SecurityEventClassifier}.
+		 */
+		private void handleEvent(Event event) throws RepositoryException {
+			String path = event.getPath();
+			int type = event.getType();
+			if (log.isDebugEnabled()) {
+				log.debug("authorizableChanged: {} {}", type, path);
+			}
+			if (classifier.classify(type, path)) {
+				if (event instanceof JackrabbitEvent && ((JackrabbitEvent) event).isExternal()) {
+					dispatcher.publish(classifier.kind, path, classifier.idStart, classifier.idEnd, true, event.getDate());
+				} else {
+					if (classifier.kind != SecurityChangeDispatcher.Kind.ACL_CHANGED) {
+						SecurityChangeDispatcher.deliver(jobEventSender, classifier.kind, path.substring(classifier.idStart, classifier.idEnd));
+					}
+					dispatcher.publish(classifier.kind, path, classifier.idStart, classifier.idEnd, false, 0);
+				}
+			}
 		}
 
 		@Override
@@ -104,29 +219,12 @@ public class UserResourceChangeListener {
 				2012-02-08_12:04:37.328 INFO  logs/access.log - 127.0.0.1 - admin 08/Feb/2012:12:04:37 +0100 "POST /system/userManager/user.create.json HTTP/1.1" 200 397 "http://localhost:8080/system/userManager/user.create.html" "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_6_8) AppleWebKit/535.19 (KHTML, like Gecko) Chrome/18.0.1025.7 Safari/535.19"
 				2012-02-08_12:04:37.329 INFO  o.l.s.s.UserResourceChangeListener - userChanged: 4 /rep:security/rep:authorizables/rep:users/t/te/test001/jcr:createdBy
 				
-				In user operations only the propery change is catched as event. We cannot determinate the Node operations.
+				The node type filter is applied on the parent node of the event's item, so the rep:User / rep:Group
+				node itself is only visible through its property events. Creation is detected by the jcr:primaryType
+				property, removal by the NODE_REMOVED event with rep:AuthorizableFolder parent.
 				*/
-				
-				
-				// TODO Determinate user deletation
 				try {
-
-//					String eventType = (event.getType() == Event.NODE_ADDED ? "NODE_ADDED" : (event.getType() == Event.NODE_REMOVED ? "NODE_REMOVED" : "NODE_REMOVED"));
-					log.info("userChanged: "+event.getType()+" "+event.getPath());
-					String pathParts[] = event.getPath().split("/");
-
-					// It's not cathed yet
-					if (event.getType() == Event.NODE_ADDED) {
-						generateJobEvent(pathParts[pathParts.length-1]);
-					} else if (event.getType() == Event.NODE_REMOVED) {
-						removeJobEvent(pathParts[pathParts.length-1]);
-					}
-					
-					// If jcr:primaryType property added, new user added
-					if (event.getType() == Event.PROPERTY_ADDED && event.getPath().endsWith("/jcr:primaryType")) {
-						generateJobEvent(pathParts[pathParts.length-2]);						
-					}
-					
+					handleEvent(event);
 				} catch (Exception e) {
 					log.error(e.getMessage(), e);
 				}
@@ -138,6 +236,12 @@ public class UserResourceChangeListener {
 
 	private ObservationManager observationManager;
 
+	private void addEventListener(int eventTypes, String absPath, String[] nodeTypes) throws RepositoryException {
+		PathEventListener listener = new PathEventListener();
+		eventListeners.add(listener);
+		observationManager.addEventListener(listener, eventTypes, absPath, true, null, nodeTypes, true);
+	}
+
 	/**
 	 * Activates this component.
 	 *
@@ -146,23 +250,112 @@ public class UserResourceChangeListener {
 	 */
 	protected void activate(ComponentContext componentContext) throws RepositoryException {
 
-		session = repository.loginAdministrative("security");
+		session = repository.loginAdministrative(SECURITY_WORKSPACE);
 		if (repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED).equals("true")) {
 			observationManager = session.getWorkspace().getObservationManager();
-			String[] nodeType = {"rep:User"};
 
-			PathEventListener listener = new PathEventListener();
-			eventListeners.add(listener);
-			observationManager.addEventListener(listener, Event.NODE_REMOVED | Event.NODE_REMOVED | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED | Event.NODE_MOVED, "/rep:security/rep:authorizables/", true, null, nodeType, true);
+			// User creation. Property changes of users (password, login etc.) are not delivered
+			addEventListener(Event.PROPERTY_ADDED, USERS_PATH, new String[]{"rep:User"});
+			// Group creation and membership changes
+			addEventListener(Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, GROUPS_PATH, new String[]{"rep:Group", "rep:Members"});
+			// User and group removal
+			addEventListener(Event.NODE_REMOVED, AUTHORIZABLES_PATH, new String[]{"rep:AuthorizableFolder"});
+			// Access control entries
+			addEventListener(Event.NODE_ADDED | Event.NODE_REMOVED, "/", new String[]{"rep:ACL"});
 		}
+		dispatcher.start();
+
+		metricsRegistration = componentContext.getBundleContext().registerService(SecurityChangeMetricsMBean.class.getName(), this, SecurityManagerServiceImpl.getServiceProperties(componentContext.getProperties()));
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = SecurityManagerServiceImpl.getMBeanName(METRICS_MBEAN_NAME, componentContext.getProperties());
+			server.registerMBean(new StandardMBean(this, SecurityChangeMetricsMBean.class), name);
+			metricsMBeanName = name;
+		} catch (JMException ex) {
+			log.warn("Could not register the security change metrics MBean", ex);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getDispatchedCount() {
+		return dispatcher.getDispatchedCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getDroppedCount() {
+		return dispatcher.getDroppedCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getProducerWaitCount() {
+		return dispatcher.getProducerWaitCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getBacklog() {
+		return dispatcher.getBacklog();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getExternalChangeCount() {
+		return dispatcher.getExternalCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLastReplicationLag() {
+		return dispatcher.getLastReplicationLag();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getMinReplicationLag() {
+		return dispatcher.getMinReplicationLag();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getMaxReplicationLag() {
+		return dispatcher.getMaxReplicationLag();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getAverageReplicationLag() {
+		return dispatcher.getAverageReplicationLag();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getAverageReplicationDelay() {
+		return dispatcher.getAverageReplicationDelay();
 	}
 
 	public void deactivate(ComponentContext componentContext) throws RepositoryException {
+		if (metricsRegistration != null) {
+			metricsRegistration.unregister();
+			metricsRegistration = null;
+		}
+		if (metricsMBeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName);
+			} catch (JMException ex) {
+				log.warn("Could not unregister the security change metrics MBean", ex);
+			}
+			metricsMBeanName = null;
+		}
+		dispatcher.stop();
 		if (observationManager != null) {
 			for (PathEventListener listener : eventListeners) {
 				observationManager.removeEventListener(listener);
 			}
 		}
+		eventListeners.clear();
 		if (session != null && session.isLive())
 			session.logout();
 	}
@@ -23,7 +23,7 @@ import java.io.Serializable;
  * @author Robert Csakany (robson@semmi.se)
  * @created Feb 12, 2010
  */
-public class AccessDeniedException extends Exception implements Serializable {
+public class AccessDeniedException extends SecurityManagerException implements Serializable {
 
 	private String msg;
 
@@ -37,6 +37,15 @@ public class AccessDeniedException extends Exception implements Serializable {
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public AccessDeniedException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public AccessDeniedException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
@@ -23,7 +23,7 @@ import java.io.Serializable;
  * @author Robert Csakany (robson@semmi.se)
  * @created Feb 12, 2010
  */
-public class GroupAlreadyExistsException extends Exception implements Serializable {
+public class GroupAlreadyExistsException extends SecurityManagerException implements Serializable {
 
 	private String msg;
 
@@ -37,6 +37,15 @@ public class GroupAlreadyExistsException extends Exception implements Serializab
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public GroupAlreadyExistsException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public GroupAlreadyExistsException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
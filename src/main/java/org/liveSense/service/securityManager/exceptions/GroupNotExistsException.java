@@ -25,7 +25,7 @@ import java.io.Serializable;
  * @created Feb 12, 2010
  */
 
-public class GroupNotExistsException extends Exception implements Serializable {
+public class GroupNotExistsException extends SecurityManagerException implements Serializable {
 	private String msg;
 
 	public GroupNotExistsException() {
@@ -37,6 +37,15 @@ public class GroupNotExistsException extends Exception implements Serializable {
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public GroupNotExistsException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public GroupNotExistsException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
@@ -24,7 +24,7 @@ import java.io.Serializable;
  * @created Feb 12, 2010
  */
 
-public class PrincipalIsNotGroupException extends Exception implements Serializable {
+public class PrincipalIsNotGroupException extends SecurityManagerException implements Serializable {
 	private String msg;
 
 	public PrincipalIsNotGroupException() {
@@ -36,6 +36,15 @@ public class PrincipalIsNotGroupException extends Exception implements Serializa
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public PrincipalIsNotGroupException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public PrincipalIsNotGroupException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
@@ -25,7 +25,7 @@ import java.io.Serializable;
  * @created Feb 12, 2010
  */
 
-public class PrincipalIsNotUserException extends Exception implements Serializable {
+public class PrincipalIsNotUserException extends SecurityManagerException implements Serializable {
 	private String msg;
 
 	public PrincipalIsNotUserException() {
@@ -37,6 +37,15 @@ public class PrincipalIsNotUserException extends Exception implements Serializab
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public PrincipalIsNotUserException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public PrincipalIsNotUserException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
@@ -24,7 +24,7 @@ import java.io.Serializable;
  * @author Robert Csakany (robson@semmi.se)
  * @created Feb 26, 2010
  */
-public class PrincipalNotExistsException extends Exception implements Serializable {
+public class PrincipalNotExistsException extends SecurityManagerException implements Serializable {
 
 	private String msg;
 
@@ -37,6 +37,15 @@ public class PrincipalNotExistsException extends Exception implements Serializab
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public PrincipalNotExistsException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public PrincipalNotExistsException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2010 Robert Csakany <robson@semmi.se>.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package org.liveSense.service.securityManager.exceptions;
+
+import java.io.Serializable;
+
+/**
+ * Base of the exceptions reporting the state of the principals (not existing, already existing,
+ * wrong type). They can be created without stack trace when they are used for control flow,
+ * filling in the stack trace is the most expensive part of creating an exception.
+ *
+ * The Throwable constructor calls {@link #fillInStackTrace()} before the fields of the exception
+ * are set, so the stack trace is skipped there and filled in by the constructors of this class
+ * when it is wanted.
+ */
+public abstract class SecurityManagerException extends Exception implements Serializable {
+
+	private transient boolean writableStackTrace;
+
+	protected SecurityManagerException() {
+		super();
+		writableStackTrace = true;
+		fillInStackTrace();
+	}
+
+	protected SecurityManagerException(String msg) {
+		super(msg);
+		writableStackTrace = true;
+		fillInStackTrace();
+	}
+
+	protected SecurityManagerException(Throwable cause) {
+		super(cause);
+		writableStackTrace = true;
+		fillInStackTrace();
+	}
+
+	protected SecurityManagerException(String msg, Throwable cause) {
+		super(msg, cause);
+		writableStackTrace = true;
+		fillInStackTrace();
+	}
+
+	/**
+	 * @param The message
+	 * @param False to skip capturing the stack trace
+	 */
+	protected SecurityManagerException(String msg, boolean writableStackTrace) {
+		super(msg);
+		if (writableStackTrace) {
+			this.writableStackTrace = true;
+			fillInStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return writableStackTrace ? super.fillInStackTrace() : this;
+	}
+}
@@ -24,7 +24,7 @@ import java.io.Serializable;
  * @created Feb 12, 2010
  */
 
-public class UserAlreadyExistsException extends Exception implements Serializable {
+public class UserAlreadyExistsException extends SecurityManagerException implements Serializable {
 
 	private String msg;
 
@@ -37,6 +37,15 @@ public class UserAlreadyExistsException extends Exception implements Serializabl
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public UserAlreadyExistsException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public UserAlreadyExistsException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();
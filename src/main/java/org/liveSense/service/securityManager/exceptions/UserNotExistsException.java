@@ -24,7 +24,7 @@ import java.io.Serializable;
  * @created Feb 12, 2010
  */
 
-public class UserNotExistsException extends Exception implements Serializable {
+public class UserNotExistsException extends SecurityManagerException implements Serializable {
 	private String msg;
 
 	public UserNotExistsException() {
@@ -36,6 +36,15 @@ public class UserNotExistsException extends Exception implements Serializable {
 		this.msg = msg;
 	}
 
+	/**
+	 * Creates the exception without the stack trace when writableStackTrace is false,
+	 * for the callers using it for control flow
+	 */
+	public UserNotExistsException(String msg, boolean writableStackTrace) {
+		super(msg, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public UserNotExistsException(Throwable cause) {
 		super(cause);
 		this.msg = cause.getMessage();